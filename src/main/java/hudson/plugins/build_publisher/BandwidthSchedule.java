@@ -0,0 +1,98 @@
+package hudson.plugins.build_publisher;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Upload bandwidth limits for the times of the day, such as
+ * <pre>
+ * 08:00-18:00 256
+ * 22:00-06:00 0
+ * </pre>
+ * Each line gives a time range and the limit in KiB/s that applies in it,
+ * 0 for no limit. The first matching line wins, the ranges can span midnight.
+ *
+ * @see HudsonInstance#getBandwidthSchedule()
+ */
+/*package*/ final class BandwidthSchedule {
+
+    private static final Pattern LINE = Pattern.compile("(\\d{1,2}):(\\d{2})\\s*-\\s*(\\d{1,2}):(\\d{2})\\s+(\\d+)");
+
+    private static final class Profile {
+        /**
+         * Minutes of the day, the end is exclusive.
+         */
+        final int start;
+        final int end;
+        final int bandwidth;
+
+        Profile(int start, int end, int bandwidth) {
+            this.start = start;
+            this.end = end;
+            this.bandwidth = bandwidth;
+        }
+
+        boolean contains(int minute) {
+            if (start <= end) {
+                return start <= minute && minute < end;
+            }
+            return minute >= start || minute < end;
+        }
+    }
+
+    private final List<Profile> profiles = new ArrayList<Profile>();
+
+    /**
+     * @throws IllegalArgumentException
+     *      If a line is not valid.
+     */
+    static BandwidthSchedule parse(String text) {
+        BandwidthSchedule schedule = new BandwidthSchedule();
+        if (text == null) {
+            return schedule;
+        }
+        for (String line : text.split("[\\r\\n]+")) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            Matcher m = LINE.matcher(line);
+            if (!m.matches()) {
+                throw new IllegalArgumentException("Expected HH:MM-HH:MM KIB_PER_SECOND: " + line);
+            }
+            try {
+                schedule.profiles.add(new Profile(minute(m.group(1), m.group(2)), minute(m.group(3), m.group(4)),
+                        Integer.parseInt(m.group(5))));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bandwidth out of range: " + line);
+            }
+        }
+        return schedule;
+    }
+
+    private static int minute(String hours, String minutes) {
+        int h = Integer.parseInt(hours);
+        int m = Integer.parseInt(minutes);
+        if (h > 24 || m > 59 || (h == 24 && m > 0)) {
+            throw new IllegalArgumentException("Not a time of the day: " + hours + ":" + minutes);
+        }
+        return h * 60 + m;
+    }
+
+    /**
+     * @return
+     *      KiB/s at the given time, 0 for no limit, -1 if no line applies.
+     */
+    int getBandwidth(Calendar time) {
+        int minute = time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE);
+        for (Profile profile : profiles) {
+            if (profile.contains(minute)) {
+                return profile.bandwidth;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,234 @@
+package hudson.plugins.build_publisher;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Content-addressed store of the files of received builds.
+ *
+ * <p>
+ * When enabled on the receiving instance, every incoming file is kept once
+ * under <tt>$JENKINS_HOME/build-publisher/blobs</tt>, named by its digest, and
+ * the build directories only hold hard links to these blobs. Files that the
+ * store already knows don't even need to be sent, see
+ * {@link BuildManifest#missingIn(File, BlobStore, java.util.List)}.
+ *
+ * <p>
+ * Each top level job has a store of its own, so that a build can only be
+ * given the content of files that were sent to the same job before, and not
+ * of those of any job whose digest the sender happens to know.
+ *
+ * <p>
+ * Files that Jenkins writes to in place, such as <tt>build.xml</tt> and the
+ * logs, are never linked to the store, as that would change the stored copy
+ * for all the builds sharing it.
+ *
+ * <p>
+ * Hard links need Java 7. On older runtimes, or on file systems that don't
+ * support them, builds are simply stored as they are.
+ *
+ * @see BuildPublisher.BuildPublisherDescriptor#getUseBlobStore()
+ */
+public final class BlobStore {
+
+    private static final Logger LOGGER = Logger.getLogger(BlobStore.class.getName());
+
+    /**
+     * Small files are not worth the bookkeeping.
+     */
+    private static final long MIN_SIZE = 1024;
+
+    /**
+     * Files that change after they are written.
+     */
+    private static final Set<String> MUTABLE = new HashSet<String>(Arrays.asList("build.xml", "log"));
+
+    private final File root;
+
+    BlobStore(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Gets the store of the job on this instance.
+     *
+     * @return null if the receiving instance doesn't use the store.
+     */
+    static BlobStore get(AbstractProject<?, ?> project) {
+        if (!BuildPublisher.DESCRIPTOR.getUseBlobStore()) {
+            return null;
+        }
+        // Maven modules and matrix configurations share the store of their parent
+        return new BlobStore(new File(getRoot(), Util.getDigestOf(project.getRootProject().getFullName())));
+    }
+
+    private static File getRoot() {
+        return new File(Jenkins.getInstance().getRootDir(), "build-publisher/blobs");
+    }
+
+    /**
+     * @return null if the digest is malformed.
+     */
+    private File getBlob(String digest) {
+        if (!digest.matches("[0-9a-f]{64}")) {
+            return null;
+        }
+        return new File(new File(root, digest.substring(0, 2)), digest);
+    }
+
+    /**
+     * Checks whether the store has the content described by the manifest entry.
+     */
+    boolean contains(BuildManifest.Entry entry) {
+        if (isMutable(entry.path.substring(entry.path.lastIndexOf('/') + 1))) {
+            return false;
+        }
+        File blob = getBlob(entry.digest);
+        return blob != null && blob.isFile() && blob.length() == entry.size;
+    }
+
+    /**
+     * Creates the file described by the manifest entry from the stored blob.
+     *
+     * @return false if the store doesn't have such content.
+     */
+    boolean materialize(BuildManifest.Entry entry, File target) {
+        if (!contains(entry)) {
+            return false;
+        }
+        File blob = getBlob(entry.digest);
+        target.getParentFile().mkdirs();
+        target.delete();
+        return createLink(target, blob);
+    }
+
+    /**
+     * Puts the content of the newly received file into the store, or replaces
+     * the file with a link to the stored copy if there is one already.
+     */
+    void store(File file) throws IOException {
+        if (file.length() < MIN_SIZE || isMutable(file.getName())) {
+            return;
+        }
+
+        File blob = getBlob(BuildManifest.digestOf(file));
+        // link under a temporary name first, so that nobody sees a partial state
+        if (blob.isFile()) {
+            File tmp = new File(file.getPath() + ".bp-link");
+            if (createLink(tmp, blob) && !tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } else {
+            blob.getParentFile().mkdirs();
+            File tmp = new File(blob.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+            if (createLink(tmp, file) && !tmp.renameTo(blob)) {
+                tmp.delete();
+            }
+        }
+    }
+
+    static boolean isMutable(String name) {
+        return MUTABLE.contains(name) || name.endsWith(".log");
+    }
+
+    /**
+     * Deletes the blobs that are no longer linked from any build.
+     *
+     * @return number of deleted blobs.
+     */
+    int purgeOrphans() {
+        return purgeOrphans(root);
+    }
+
+    // the stores of the jobs, and the layout before they had one, are all under the root
+    private static int purgeOrphans(File dir) {
+        int purged = 0;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                purged += purgeOrphans(file);
+            } else if (getLinkCount(file) == 1 && file.delete()) {
+                purged++;
+            }
+        }
+        return purged;
+    }
+
+    /**
+     * Creates a hard link using Java 7 API through reflection.
+     */
+    static boolean createLink(File link, File existing) {
+        try {
+            Class<?> files = Class.forName("java.nio.file.Files");
+            Class<?> path = Class.forName("java.nio.file.Path");
+            Method toPath = File.class.getMethod("toPath");
+            files.getMethod("createLink", path, path).invoke(null, toPath.invoke(link), toPath.invoke(existing));
+            return true;
+        } catch (InvocationTargetException e) {
+            LOGGER.log(Level.FINE, "Failed to link " + link + " to " + existing, e.getCause());
+            return false;
+        } catch (Exception e) {
+            // no Java 7
+            return false;
+        }
+    }
+
+    /**
+     * @return -1 if the count is not available.
+     */
+    private static int getLinkCount(File file) {
+        try {
+            Class<?> files = Class.forName("java.nio.file.Files");
+            Class<?> path = Class.forName("java.nio.file.Path");
+            Class<?> linkOption = Class.forName("java.nio.file.LinkOption");
+            Method toPath = File.class.getMethod("toPath");
+            Object count = files.getMethod("getAttribute", path, String.class, Array.newInstance(linkOption, 0).getClass())
+                    .invoke(null, toPath.invoke(file), "unix:nlink", Array.newInstance(linkOption, 0));
+            return ((Number) count).intValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Removes the blobs of the builds that have been deleted meanwhile.
+     */
+    @Extension
+    public static class OrphanCollector extends AsyncPeriodicWork {
+        public OrphanCollector() {
+            super("Build publisher blob store cleanup");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.DAYS.toMillis(1);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            if (BuildPublisher.DESCRIPTOR.getUseBlobStore()) {
+                listener.getLogger().println("Deleted " + new BlobStore(getRoot()).purgeOrphans() + " unused blobs");
+            }
+        }
+    }
+}
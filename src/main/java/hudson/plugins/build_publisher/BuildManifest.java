@@ -0,0 +1,172 @@
+package hudson.plugins.build_publisher;
+
+import hudson.Util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * List of files of published builds, together with their size and digest.
+ *
+ * <p>
+ * The sender posts the manifest of the builds to the remote instance before it
+ * sends them, and the remote answers with the paths it doesn't have yet (or has
+ * a different version of), so that only those need to be transmitted.
+ *
+ * <p>
+ * The paths are relative to the builds directory of the job, so they start
+ * with the name of the build directory. On the wire the manifest is a plain
+ * text with one <tt>size digest path</tt> line per file.
+ *
+ * @see ExternalProjectProperty#doCheckManifest
+ */
+/*package*/ final class BuildManifest implements Iterable<BuildManifest.Entry> {
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    static final class Entry {
+        final String path;
+        final long size;
+        final String digest;
+
+        Entry(String path, long size, String digest) {
+            this.path = path;
+            this.size = size;
+            this.digest = digest;
+        }
+
+        /**
+         * Checks if the given file has the same content as the one described by this entry.
+         */
+        boolean matches(File file) throws IOException {
+            return file.isFile() && file.length() == size && digest.equals(digestOf(file));
+        }
+    }
+
+    void add(String path, File file) throws IOException {
+        entries.add(new Entry(path, file.length(), digestOf(file)));
+    }
+
+    public Iterator<Entry> iterator() {
+        return entries.iterator();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    void write(Writer out) {
+        PrintWriter w = new PrintWriter(out);
+        for (Entry e : entries) {
+            w.print(e.size);
+            w.print(' ');
+            w.print(e.digest);
+            w.print(' ');
+            w.print(e.path);
+            w.print('\n');
+        }
+        w.flush();
+    }
+
+    static BuildManifest read(Reader in) throws IOException {
+        BuildManifest manifest = new BuildManifest();
+        BufferedReader r = new BufferedReader(in);
+        String line;
+        while ((line = r.readLine()) != null) {
+            if (line.length() == 0) {
+                continue;
+            }
+            // the path is last, so that it can contain spaces
+            int first = line.indexOf(' ');
+            int second = first < 0 ? -1 : line.indexOf(' ', first + 1);
+            if (second < 0) {
+                throw new IOException("Malformed manifest line: " + line);
+            }
+            try {
+                manifest.entries.add(new Entry(line.substring(second + 1),
+                        Long.parseLong(line.substring(0, first)), line.substring(first + 1, second)));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed manifest line: " + line);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Lists the paths of the entries that are missing in the given directory or
+     * that differ from the local files.
+     *
+     * @param blobs
+     *      If not null, the files whose content is already in the store are
+     *      added to <tt>inStore</tt> instead of being reported missing.
+     */
+    List<String> missingIn(File baseDir, BlobStore blobs, List<Entry> inStore) throws IOException {
+        List<String> missing = new ArrayList<String>();
+        for (Entry e : entries) {
+            if (!isSafe(e.path)) {
+                missing.add(e.path);
+                continue;
+            }
+            File file = new File(baseDir, e.path);
+            if (e.matches(file)) {
+                continue;
+            }
+            if (blobs != null && blobs.contains(e)) {
+                inStore.add(e);
+            } else {
+                missing.add(e.path);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Refuses to look outside of the builds directory.
+     */
+    static boolean isSafe(String path) {
+        if (path.startsWith("/") || path.indexOf('\\') >= 0 || path.indexOf(':') >= 0) {
+            return false;
+        }
+        for (String segment : path.split("/")) {
+            if (segment.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * SHA-256 of the file content, also used as the address in {@link BlobStore}.
+     */
+    static String digestOf(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+
+        byte[] buf = new byte[8192];
+        InputStream in = new FileInputStream(file);
+        try {
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                digest.update(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return Util.toHexString(digest.digest());
+    }
+}
@@ -2,6 +2,7 @@ package hudson.plugins.build_publisher;
 
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.matrix.MatrixAggregatable;
 import hudson.matrix.MatrixAggregator;
 import hudson.matrix.MatrixBuild;
@@ -20,8 +21,10 @@ import hudson.tasks.LogRotator.LRDescriptor;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
 import jenkins.model.Jenkins;
@@ -45,6 +48,27 @@ public class BuildPublisher extends Notifier implements MatrixAggregatable {
     private List<BuildPublisherPostAction> postActions = new Vector<BuildPublisherPostAction>();
     private LogRotator logRotator;
 
+    /**
+     * Added to the priority of the builds of this job in the publishing queue.
+     *
+     * @see PublishPriority.JobPriority
+     */
+    private int priority;
+
+    /**
+     * Publish only the newest of the queued builds of the job.
+     */
+    private boolean latestOnly;
+
+    /**
+     * Comma separated Ant patterns of the files of the build directory to
+     * publish, and of those not to publish. Empty for the global defaults.
+     *
+     * @see PublishedFiles
+     */
+    private String includes;
+    private String excludes;
+
     private transient HudsonInstance publicHudsonInstance;
 
     @Override
@@ -116,10 +140,34 @@ public class BuildPublisher extends Notifier implements MatrixAggregatable {
 
         private HudsonInstance[] publicInstances = new HudsonInstance[0];
         private boolean removeTriggers;
+        private boolean useBlobStore;
+
+        /**
+         * Upload limit in KiB/s shared by all the instances, 0 means unlimited.
+         */
+        private int bandwidth;
+
+        private transient final TokenBucket uploadBucket = new TokenBucket();
+
+        /**
+         * How many incoming builds may be extracted at a time, 0 means unlimited.
+         *
+         * @see ReceiverLocks
+         */
+        private int maxIncoming;
+
+        /**
+         * Patterns of the files to publish for the jobs that don't set their own.
+         *
+         * @see BuildPublisher#getIncludes()
+         */
+        private String includes;
+        private String excludes;
 
         protected BuildPublisherDescriptor() {
             super(BuildPublisher.class);
             load();
+            uploadBucket.setRate(bandwidth * 1024L);
         }
 
         protected void convert(Map<String, Object> oldPropertyBag) {
@@ -142,6 +190,59 @@ public class BuildPublisher extends Notifier implements MatrixAggregatable {
             return removeTriggers;
         }
 
+        public void setUseBlobStore(boolean useBlobStore) {
+            this.useBlobStore = useBlobStore;
+        }
+
+        /**
+         * Whether received builds are deduplicated through {@link BlobStore}.
+         */
+        public boolean getUseBlobStore() {
+            return useBlobStore;
+        }
+
+        public int getBandwidth() {
+            return bandwidth;
+        }
+
+        /**
+         * @param bandwidth
+         *      KiB/s, 0 for unlimited.
+         */
+        public void setBandwidth(int bandwidth) {
+            this.bandwidth = Math.max(0, bandwidth);
+            uploadBucket.setRate(this.bandwidth * 1024L);
+        }
+
+        public int getMaxIncoming() {
+            return maxIncoming;
+        }
+
+        public void setMaxIncoming(int maxIncoming) {
+            this.maxIncoming = Math.max(0, maxIncoming);
+            ReceiverLocks.limitChanged();
+        }
+
+        public String getIncludes() {
+            return includes;
+        }
+
+        public void setIncludes(String includes) {
+            this.includes = Util.fixEmptyAndTrim(includes);
+        }
+
+        public String getExcludes() {
+            return excludes;
+        }
+
+        public void setExcludes(String excludes) {
+            this.excludes = Util.fixEmptyAndTrim(excludes);
+        }
+
+        /*package*/ TokenBucket getUploadBucket() {
+            return uploadBucket;
+        }
+
         @Override
         public Publisher newInstance(StaplerRequest req, JSONObject formData) throws FormException {
             //TODO post-actions
@@ -165,6 +266,7 @@ public class BuildPublisher extends Notifier implements MatrixAggregatable {
             String[] passwords = req.getParameterValues("bp.password");
 
             List<HudsonInstance> servers = new ArrayList<HudsonInstance>();
+            Set<String> serverNames = new HashSet<String>();
             for (int i = 0; i < names.length; i++) {
                 if (urls[i].length() == 0) {
                     continue;
@@ -172,18 +274,128 @@ public class BuildPublisher extends Notifier implements MatrixAggregatable {
                 if (names[i].length() == 0) {
                     names[i] = urls[i];
                 }
-                servers.add(new HudsonInstance(names[i], urls[i], logins[i], passwords[i]));
+                // the name identifies the queue
+                if (!serverNames.add(names[i])) {
+                    throw new FormException("Duplicate server name: " + names[i], "bp.name");
+                }
+                // started below, unless there is one of the name already
+                HudsonInstance server = new HudsonInstance(names[i], urls[i], logins[i], passwords[i], false);
+                try {
+                    server.setCompressionLevel(intParameter(req, "bp.compressionLevel", i, 0));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "bp.compressionLevel");
+                }
+                try {
+                    server.setWorkers(intParameter(req, "bp.workers", i, 1));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "bp.workers");
+                }
+                try {
+                    server.setMaxConnections(intParameter(req, "bp.maxConnections", i, 0));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "bp.maxConnections");
+                }
+                try {
+                    server.setUploadConnections(intParameter(req, "bp.uploadConnections", i, 1));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "bp.uploadConnections");
+                }
+                try {
+                    server.setChunkSize(intParameter(req, "bp.chunkSize", i, 0));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "bp.chunkSize");
+                }
+                try {
+                    server.setIdleTimeout(intParameter(req, "bp.idleTimeout", i, 0));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "bp.idleTimeout");
+                }
+                try {
+                    server.setMaxAttempts(intParameter(req, "bp.maxAttempts", i, 0));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "bp.maxAttempts");
+                }
+                try {
+                    server.setFailureThreshold(intParameter(req, "bp.failureThreshold", i, 0));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "bp.failureThreshold");
+                }
+                try {
+                    server.setBatchSize(intParameter(req, "bp.batchSize", i, 1));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "bp.batchSize");
+                }
+                try {
+                    server.setBatchWindow(intParameter(req, "bp.batchWindow", i, 0));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "bp.batchWindow");
+                }
+                try {
+                    server.setBandwidth(intParameter(req, "bp.bandwidth", i, 0));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "bp.bandwidth");
+                }
+                try {
+                    server.setBandwidthSchedule(parameter(req, "bp.bandwidthSchedule", i));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException(e.getMessage(), "bp.bandwidthSchedule");
+                }
+                server.setPreemptiveAuthentication("basic".equals(parameter(req, "bp.authentication", i)));
+                servers.add(server);
             }
 
-            this.publicInstances = servers.toArray(new HudsonInstance[0]);
+            List<HudsonInstance> instances = new ArrayList<HudsonInstance>();
+            for (HudsonInstance server : servers) {
+                HudsonInstance current = getHudsonInstanceForName(server.getName());
+                if (current != null) {
+                    current.reconfigure(server);
+                    instances.add(current);
+                } else {
+                    server.start();
+                    instances.add(server);
+                }
+            }
+            for (HudsonInstance removed : publicInstances) {
+                if (!instances.contains(removed)) {
+                    removed.stop();
+                }
+            }
+            this.publicInstances = instances.toArray(new HudsonInstance[0]);
 
             req.bindParameters(this, "bp.server.");
+            // unchecked box is not submitted at all
+            useBlobStore = req.getParameter("bp.server.useBlobStore") != null;
 
             save();
 
             return true;
         }
 
+        /**
+         * Reads the value of the i-th public instance in the form.
+         *
+         * @return null if not set.
+         */
+        private static String parameter(StaplerRequest req, String name, int i) {
+            String[] values = req.getParameterValues(name);
+            return (values != null && i < values.length) ? Util.fixEmptyAndTrim(values[i]) : null;
+        }
+
+        /**
+         * Reads the numeric value of the i-th public instance in the form.
+         */
+        private static int intParameter(StaplerRequest req, String name, int i, int defaultValue) throws FormException {
+            String value = parameter(req, name, i);
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new FormException("Not a number: " + value, name);
+            }
+        }
+
         public HudsonInstance[] getPublicInstances() {
             return publicInstances;
         }
@@ -267,6 +479,49 @@ public class BuildPublisher extends Notifier implements MatrixAggregatable {
         this.serverName = name;
     }
 
+    /**
+     * Gets the publisher of the job of the build, of the parent job in case
+     * of matrix runs and maven modules.
+     *
+     * @return null if the job doesn't publish its builds.
+     */
+    static BuildPublisher of(AbstractBuild build) {
+        AbstractProject<?, ?> project = build.getProject().getRootProject();
+        return project.getPublishersList().get(BuildPublisher.class);
+    }
+
+    public String getIncludes() {
+        return includes;
+    }
+
+    public void setIncludes(String includes) {
+        this.includes = Util.fixEmptyAndTrim(includes);
+    }
+
+    public String getExcludes() {
+        return excludes;
+    }
+
+    public void setExcludes(String excludes) {
+        this.excludes = Util.fixEmptyAndTrim(excludes);
+    }
+
+    public boolean isLatestOnly() {
+        return latestOnly;
+    }
+
+    public void setLatestOnly(boolean latestOnly) {
+        this.latestOnly = latestOnly;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
     public HudsonInstance getPublicHudsonInstance() {
         return BuildPublisher.DESCRIPTOR.getHudsonInstanceForName(getServerName());  //transient attribute, it's not sure, that is set-up, when called
     }
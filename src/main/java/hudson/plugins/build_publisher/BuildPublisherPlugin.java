@@ -12,6 +12,9 @@ import org.kohsuke.stapler.StaplerResponse;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Entry point of a plugin.
@@ -23,6 +26,40 @@ import java.io.IOException;
  * @author Kohsuke Kawaguchi
  */
 public class BuildPublisherPlugin extends Plugin {
+
+    /**
+     * The receiver accepts gzip compressed build archives.
+     */
+    static final String CAPABILITY_GZIP = "gzip";
+
+    /**
+     * The receiver tells which files of a build it is missing.
+     *
+     * @see BuildManifest
+     */
+    static final String CAPABILITY_MANIFEST = "manifest";
+
+    /**
+     * The receiver accepts several builds of a project in one request.
+     *
+     * @see ExternalProjectProperty#doAcceptBuilds
+     */
+    static final String CAPABILITY_BATCH = "batch";
+
+    /**
+     * The receiver stages archives sent in parts, so that a broken upload can be resumed.
+     *
+     * @see StagedUpload
+     */
+    static final String CAPABILITY_RESUME = "resume";
+
+    /**
+     * Optional parts of the publishing protocol this version of the plugin
+     * understands when receiving builds.
+     */
+    static final List<String> CAPABILITIES = Arrays.asList(CAPABILITY_GZIP, CAPABILITY_MANIFEST, CAPABILITY_BATCH,
+            CAPABILITY_RESUME);
+
     @Extension
     public static class BuildPublisherManagementLink extends ManagementLink {
         public String getIconFileName() {
@@ -62,7 +99,8 @@ public class BuildPublisherPlugin extends Plugin {
             return;
         }
         
-        h.getPublisherThread().interrupt();
+        h.retryNow();
+        h.getCircuitBreaker().probeNow();
 
         rsp.sendRedirect(".");
     }
@@ -76,11 +114,23 @@ public class BuildPublisherPlugin extends Plugin {
             return;
         }
 
-        h.initPublisherThread();
+        h.initPublisherThreads();
 
         rsp.sendRedirect(".");
     }
 
+    /**
+     * Lists {@link #CAPABILITIES}, one per line, so that sending instances can
+     * find out what they can use.
+     */
+    public void doCapabilities(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        rsp.setContentType("text/plain;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        for (String capability : CAPABILITIES) {
+            w.println(capability);
+        }
+    }
+
     // form field validation
     public void doCheckHudsonUrl(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
         new FormFieldValidator.HudsonURL(req,rsp).process();
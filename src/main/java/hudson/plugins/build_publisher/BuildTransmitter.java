@@ -3,6 +3,7 @@ package hudson.plugins.build_publisher;
 import hudson.model.AbstractBuild;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Base interface for build transmitters.
@@ -21,6 +22,15 @@ public interface BuildTransmitter {
      */
     public void sendBuild(AbstractBuild build, HudsonInstance hudsonInstance) throws ServerFailureException;
 
+    /**
+     * Publishes several builds of one project at once.
+     *
+     * @param builds Builds of the same project, in the order of their numbers
+     * @param hudsonInstance Targetted public hudson
+     * @throws ServerFailureException when an error occures
+     */
+    public void sendBuilds(List<AbstractBuild> builds, HudsonInstance hudsonInstance) throws ServerFailureException;
+
     /**
      * Aborts transmission. (optional?)
      */
@@ -0,0 +1,138 @@
+package hudson.plugins.build_publisher;
+
+import hudson.Util;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import jenkins.util.Timer;
+
+import org.apache.commons.httpclient.methods.HeadMethod;
+
+/**
+ * Stops the publishing to a {@link HudsonInstance} that can't be reached.
+ *
+ * <p>
+ * After {@link HudsonInstance#getFailureThreshold()} consecutive connection
+ * failures the breaker opens, and the workers stop taking builds from the
+ * queue, so no archives are built just to fail the upload. Meanwhile the root
+ * of the remote instance is probed every now and then, and the first response,
+ * whatever its status, closes the breaker again.
+ */
+public final class CircuitBreaker {
+
+    private static final long INITIAL_PROBE_DELAY = TimeUnit.SECONDS.toMillis(15);
+    private static final long MAX_PROBE_DELAY = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Probes shouldn't hang like the uploads are allowed to.
+     */
+    private static final int PROBE_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+
+    private final HudsonInstance instance;
+
+    private int consecutiveFailures;
+
+    /**
+     * When the breaker opened, 0 while it is closed.
+     */
+    private long openedAt;
+
+    private long probeDelay;
+    private long nextProbe;
+    private ScheduledFuture<?> probe;
+
+    CircuitBreaker(HudsonInstance instance) {
+        this.instance = instance;
+    }
+
+    public synchronized boolean isOpen() {
+        return openedAt != 0;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized String getOpenSinceString() {
+        return Util.getTimeSpanString(System.currentTimeMillis() - openedAt);
+    }
+
+    public synchronized String getNextProbeString() {
+        return Util.getTimeSpanString(Math.max(0, nextProbe - System.currentTimeMillis()));
+    }
+
+    /**
+     * The remote instance responded.
+     */
+    synchronized void succeeded() {
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * The remote instance couldn't be reached.
+     */
+    synchronized void failed() {
+        consecutiveFailures++;
+        if (!isOpen() && consecutiveFailures >= instance.getFailureThreshold()) {
+            HudsonInstance.LOGGER.warning("Suspending publishing to " + instance.getUrl() + " after "
+                    + consecutiveFailures + " consecutive connection failures");
+            openedAt = System.currentTimeMillis();
+            probeDelay = INITIAL_PROBE_DELAY;
+            scheduleProbe(probeDelay);
+        }
+    }
+
+    /**
+     * Probes the remote instance right away, if the breaker is open.
+     */
+    synchronized void probeNow() {
+        if (isOpen()) {
+            probe.cancel(false);
+            scheduleProbe(0);
+        }
+    }
+
+    private void scheduleProbe(long delay) {
+        nextProbe = System.currentTimeMillis() + delay;
+        probe = Timer.get().schedule(new Runnable() {
+            public void run() {
+                probe();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe() {
+        HeadMethod method = new HeadMethod(instance.getUrl());
+        method.getParams().setSoTimeout(PROBE_TIMEOUT);
+        boolean reachable;
+        try {
+            instance.getHttpClient().executeMethod(method);
+            reachable = true;
+        } catch (IOException e) {
+            HudsonInstance.LOGGER.log(Level.FINE, instance.getUrl() + " is still unreachable", e);
+            reachable = false;
+        } finally {
+            method.releaseConnection();
+        }
+
+        synchronized (this) {
+            if (!isOpen()) {
+                return;
+            }
+            if (!reachable) {
+                probeDelay = Math.min(probeDelay * 2, MAX_PROBE_DELAY);
+                scheduleProbe(probeDelay);
+                return;
+            }
+            HudsonInstance.LOGGER.info("Resuming publishing to " + instance.getUrl());
+            openedAt = 0;
+            consecutiveFailures = 0;
+            probe = null;
+        }
+        // the builds that failed meanwhile don't have to wait for their retry anymore
+        instance.retryNow();
+    }
+}
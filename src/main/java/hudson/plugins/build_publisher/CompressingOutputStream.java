@@ -0,0 +1,122 @@
+package hudson.plugins.build_publisher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * GZIP stream used to compress the build archive on its way to the remote instance.
+ *
+ * <p>
+ * Files that are already compressed (archived jars, zips, images...) gain nothing
+ * from being deflated again, so the stream can be switched to store such
+ * entries as they are and back to the configured level afterwards.
+ *
+ * @see HudsonInstance#getCompressionLevel()
+ */
+/*package*/ final class CompressingOutputStream extends GZIPOutputStream {
+
+    /**
+     * Value of the <tt>X-Build-Encoding</tt> header for archives sent through this stream.
+     */
+    static final String ENCODING = "gzip";
+
+    /**
+     * Extensions of the files that are known not to compress.
+     */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "zip", "jar", "war", "ear", "hpi", "jpi", "apk", "gz", "tgz", "bz2", "xz", "7z",
+            "rpm", "deb", "png", "jpg", "jpeg", "gif"
+    ));
+
+    /**
+     * Files shorter than this are always compressed, sampling them is not worth it.
+     */
+    private static final int SAMPLE_SIZE = 4096;
+
+    private final int level;
+    private boolean storing = false;
+
+    CompressingOutputStream(OutputStream out, int level) throws IOException {
+        super(out, 8192);
+        this.level = level;
+        def.setLevel(level);
+    }
+
+    /**
+     * Chooses whether the following data are deflated with the configured
+     * level or just stored.
+     *
+     * <p>
+     * Only the data written from now on are affected. What the writer keeps
+     * in a buffer of its own, such as the last block of a tar stream, still
+     * goes with the level that is being left, so the switch is only as exact
+     * as the writer flushes.
+     */
+    void setCompressing(boolean compress) throws IOException {
+        if (compress == storing) {
+            storing = !compress;
+            def.setLevel(compress ? level : Deflater.NO_COMPRESSION);
+            // the deflater switches on its next call, deflating the input it has
+            // then with the old level, so let it switch before any more comes
+            def.setInput(NO_INPUT);
+            int len;
+            while ((len = def.deflate(buf, 0, buf.length)) > 0) {
+                out.write(buf, 0, len);
+            }
+        }
+    }
+
+    private static final byte[] NO_INPUT = new byte[0];
+
+    /**
+     * Guesses whether it makes sense to compress the given file, either by its
+     * extension or by deflating a small sample of its content.
+     */
+    static boolean isCompressible(File file) throws IOException {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH))) {
+            return false;
+        }
+
+        if (file.length() <= SAMPLE_SIZE) {
+            return true;
+        }
+
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while (length < sample.length && (read = in.read(sample, length, sample.length - length)) >= 0) {
+                length += read;
+            }
+        } finally {
+            in.close();
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] buf = new byte[SAMPLE_SIZE];
+            int compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(buf);
+            }
+            // less than 10% saved is not worth the CPU
+            return compressed < length * 9 / 10;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package hudson.plugins.build_publisher;
+
+import hudson.XmlFile;
+import hudson.model.Job;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Digests of the job configurations last submitted to a {@link HudsonInstance},
+ * so that configurations that haven't changed since are not sent again.
+ *
+ * <p>
+ * The digests are kept in <tt>bp-NAME-configs.xml</tt> next to the queue of
+ * the instance, so that they survive restarts.
+ */
+/*package*/ final class ConfigFingerprints {
+
+    private final XmlFile file;
+
+    /**
+     * Full name of the job to the digest of its config.xml.
+     */
+    private Map<String, String> digests;
+
+    private boolean dirty;
+
+    ConfigFingerprints(File file) {
+        this.file = new XmlFile(file);
+    }
+
+    /**
+     * Checks whether the configuration of the job with the given digest is the
+     * one last submitted to the remote instance.
+     *
+     * @see #digestOf(Job)
+     */
+    synchronized boolean isUpToDate(Job job, String digest) {
+        return digest.equals(getDigests().get(job.getFullName()));
+    }
+
+    /**
+     * Remembers that the configuration of the job has been submitted.
+     *
+     * @param digest
+     *      Taken before the configuration was sent. Should it have changed
+     *      meanwhile, the digest doesn't match the next time and the newer
+     *      version gets sent too.
+     */
+    synchronized void submitted(Job job, String digest) {
+        if (!digest.equals(getDigests().put(job.getFullName(), digest))) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Forgets the job and its children, since the remote instance doesn't have
+     * it anymore.
+     */
+    synchronized void forget(String fullName) {
+        for (Iterator<String> it = getDigests().keySet().iterator(); it.hasNext();) {
+            String name = it.next();
+            if (name.equals(fullName) || name.startsWith(fullName + "/")) {
+                it.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Persists the changes made since the last save.
+     */
+    synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            file.write(digests);
+            dirty = false;
+        } catch (IOException e) {
+            HudsonInstance.LOGGER.log(Level.WARNING, "Could not save config fingerprints to "
+                    + file.getFile().getAbsolutePath(), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> getDigests() {
+        if (digests == null) {
+            digests = new HashMap<String, String>();
+            if (file.exists()) {
+                try {
+                    digests.putAll((Map<String, String>) file.read());
+                } catch (IOException e) {
+                    // everything gets submitted again, no harm done
+                    HudsonInstance.LOGGER.log(Level.WARNING, "Could not load config fingerprints from "
+                            + file.getFile().getAbsolutePath(), e);
+                }
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * Gets the digest of the current config.xml of the job.
+     */
+    static String digestOf(Job job) throws IOException {
+        return BuildManifest.digestOf(job.getConfigFile().getFile());
+    }
+}
@@ -14,15 +14,13 @@ import hudson.model.Project;
 import hudson.model.ProminentProjectAction;
 import hudson.model.Result;
 import hudson.model.Run;
+import hudson.model.RunMap;
 import hudson.model.AbstractBuild;
 import hudson.tasks.ArtifactArchiver;
 import hudson.tasks.LogRotator;
 import hudson.util.IOException2;
 import hudson.util.LogTaskListener;
 import net.sf.json.JSONObject;
-import org.apache.tools.ant.BuildException;
-import org.apache.tools.ant.taskdefs.Untar;
-import org.apache.tools.ant.types.Resource;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import java.io.BufferedInputStream;
@@ -30,10 +28,16 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashSet;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -70,17 +74,22 @@ public class ExternalProjectProperty extends JobProperty<Job<?, ?>> implements
         String configuration = req.getParameter("name");
         if(project instanceof MatrixProject){
             MatrixProject matrixProject = (MatrixProject) project;
-            MatrixConfiguration config = matrixProject.getItem(configuration);
-            if(config==null){
-                config = new MatrixConfiguration(matrixProject, Combination.fromString(configuration));
-                try{
-                    config.save();
-                    reloadProject(project);
-                    rsp.setHeader("X-configuration-created", config.getName());
+            Lock lock = ReceiverLocks.lock(project);
+            try {
+                MatrixConfiguration config = matrixProject.getItem(configuration);
+                if(config==null){
+                    config = new MatrixConfiguration(matrixProject, Combination.fromString(configuration));
+                    try{
+                        config.save();
+                        reloadProject(project);
+                        rsp.setHeader("X-configuration-created", config.getName());
+                    }
+                    catch(IOException ex){
+                        LOGGER.log(Level.WARNING, "Failed to create configuration " + configuration + " for matrix project " + project.getName(), ex);
+                    }   
                 }
-                catch(IOException ex){
-                    LOGGER.log(Level.WARNING, "Failed to create configuration " + configuration + " for matrix project " + project.getName(), ex);
-                }   
+            } finally {
+                lock.unlock();
             }
         }
         else{
@@ -111,6 +120,7 @@ public class ExternalProjectProperty extends JobProperty<Job<?, ?>> implements
         moduleDir.mkdirs();
         File configFile = new File(moduleDir, "config.xml");
 
+        Lock lock = ReceiverLocks.lock(project);
         try {
             FileOutputStream fos = new FileOutputStream(configFile);
             try {
@@ -130,7 +140,72 @@ public class ExternalProjectProperty extends JobProperty<Job<?, ?>> implements
             // Util.deleteRecursive(moduleDir);
 
             throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compares the posted {@link BuildManifest} with the local build directories
+     * and responds with the paths that need to be sent, one per line.
+     */
+    public void doCheckManifest(StaplerRequest req, StaplerResponse rsp)
+            throws IOException {
+        project.checkPermission(Job.CONFIGURE);
+
+        BuildManifest manifest = BuildManifest.read(req.getReader());
+        File buildsDir = Jenkins.getInstance().getBuildDirFor(project);
+        List<BuildManifest.Entry> inStore = new ArrayList<BuildManifest.Entry>();
+        List<String> missing;
+        // the answer has to hold until the builds arrive, not be overtaken by another commit
+        Lock lock = ReceiverLocks.lock(project);
+        try {
+            missing = manifest.missingIn(buildsDir, BlobStore.get(project), inStore);
+            // linked into the builds when they arrive, not to have them show up before
+            StagedBuilds.expectFromStore(buildsDir, inStore);
+        } finally {
+            lock.unlock();
+        }
+
+        rsp.setContentType("text/plain;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        for (String path : missing) {
+            w.print(path);
+            w.print('\n');
         }
+        w.flush();
+    }
+
+    /**
+     * Stages a part of a build archive, starting at the <tt>offset</tt>
+     * parameter, under the upload <tt>id</tt>. Responds with the length of the
+     * archive that has arrived so far in the <tt>X-Upload-Offset</tt> header,
+     * which is all a GET does.
+     *
+     * @see StagedUpload
+     */
+    public void doUpload(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        project.checkPermission(Job.CONFIGURE);
+
+        StagedUpload upload;
+        try {
+            upload = new StagedUpload(project, req.getParameter("id"));
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        if ("POST".equals(req.getMethod())) {
+            long offset;
+            try {
+                offset = Long.parseLong(req.getParameter("offset"));
+            } catch (NumberFormatException e) {
+                rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed offset: " + req.getParameter("offset"));
+                return;
+            }
+            upload.write(offset, req.getInputStream());
+        }
+        rsp.setHeader("X-Upload-Offset", String.valueOf(upload.getCommittedLength()));
     }
 
     /**
@@ -140,106 +215,228 @@ public class ExternalProjectProperty extends JobProperty<Job<?, ?>> implements
             throws IOException, InterruptedException {
         project.checkPermission(Job.CONFIGURE);
 
-        // Don't send notifications for old builds
-        Set<String> oldBuildIDs = new HashSet<String>();
-        for (Run run : project.getBuilds()) {
-            oldBuildIDs.add(run.getId());
+        Lock lock = ReceiverLocks.lock(project);
+        try {
+            if (!receive(req, rsp, req.getHeader("X-Build-Number"))) {
+                return;
+            }
+
+            //Add confirmation header
+            rsp.addHeader("X-Build-Recieved",project.getName());
+            try {
+                tidyUp();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cleaning project " + project.getName()
+                        + "failed: " + e.getMessage(),e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Accepts several builds of the project sent in one archive, listed in the
+     * <tt>X-Build-Numbers</tt> header. The project is reloaded and cleaned up
+     * only once for all of them.
+     */
+    public void doAcceptBuilds(StaplerRequest req, StaplerResponse rsp)
+            throws IOException, InterruptedException {
+        project.checkPermission(Job.CONFIGURE);
+
+        String header = req.getHeader("X-Build-Numbers");
+        if (header == null) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "No builds listed");
+            return;
+        }
+        List<Integer> numbers = new ArrayList<Integer>();
+        try {
+            for (String number : header.split(",")) {
+                numbers.add(Integer.parseInt(number.trim()));
+            }
+        } catch (NumberFormatException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed build numbers: " + header);
+            return;
+        }
+
+        Lock lock = ReceiverLocks.lock(project);
+        try {
+            if (!receive(req, rsp, String.valueOf(Collections.max(numbers)))) {
+                return;
+            }
+
+            //Confirm the builds that are really there now
+            StringBuilder received = new StringBuilder();
+            for (int number : numbers) {
+                if (project.getBuildByNumber(number) != null) {
+                    if (received.length() > 0) {
+                        received.append(',');
+                    }
+                    received.append(number);
+                }
+            }
+            rsp.addHeader("X-Builds-Received", received.toString());
+            try {
+                tidyUp();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cleaning project " + project.getName()
+                        + "failed: " + e.getMessage(),e);
+            }
+        } finally {
+            lock.unlock();
         }
+    }
 
+    /**
+     * Receives the builds sent in the request, or staged before if the request
+     * names an upload.
+     *
+     * @return false if the staged archive is not the one the sender has sent,
+     *      the error is sent then.
+     */
+    private boolean receive(StaplerRequest req, StaplerResponse rsp, String buildNumber)
+            throws IOException, InterruptedException {
+        String uploadId = req.getHeader("X-Upload-Id");
+        if (uploadId == null) {
+            // extracted as it comes in, so the slot is taken for the whole transfer
+            ReceiverLocks.acquireSlot();
+            try {
+                receive(req.getInputStream(), req.getHeader("X-Build-Encoding"), buildNumber);
+            } finally {
+                ReceiverLocks.releaseSlot();
+            }
+            return true;
+        }
+
+        StagedUpload upload;
+        long length;
+        try {
+            upload = new StagedUpload(project, uploadId);
+            length = Long.parseLong(req.getHeader("X-Upload-Length"));
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return false;
+        }
+        ReceiverLocks.acquireSlot();
+        try {
+            if (!upload.matches(length, req.getHeader("X-Upload-Digest"))) {
+                // the sender starts over
+                upload.delete();
+                rsp.sendError(HttpServletResponse.SC_CONFLICT, "Upload " + uploadId + " is incomplete or corrupted");
+                return false;
+            }
+
+            InputStream in = upload.open(length);
+            try {
+                receive(in, req.getHeader("X-Build-Encoding"), buildNumber);
+            } finally {
+                in.close();
+            }
+        } finally {
+            ReceiverLocks.releaseSlot();
+        }
+        upload.delete();
+        return true;
+    }
+
+    /**
+     * Extracts the incoming builds and loads them into the project.
+     *
+     * @param buildNumber
+     *      The latest of the incoming builds.
+     */
+    private void receive(InputStream archive, String encoding, String buildNumber)
+            throws IOException, InterruptedException {
         File buildsDir = Jenkins.getInstance().getBuildDirFor(project);
         
-        //Untar incoming builds unto the build directory
-        Untar untar = new Untar();
-        untar.setProject(new org.apache.tools.ant.Project());
-        untar.add(new InputStreamResource(project.getName(),
-                new BufferedInputStream(req.getInputStream())));
-        untar.setDest(buildsDir);
-        untar.setOverwrite(true);
+        InputStream in = new BufferedInputStream(archive);
+        if (CompressingOutputStream.ENCODING.equals(encoding)) {
+            in = new GZIPInputStream(in);
+        }
 
-        
         if (BuildPublisher.DESCRIPTOR.getRemoveTriggers()) {
         	removeTriggers(project);
         }
 
-        String buildNumber = req.getHeader("X-Build-Number");
-        
+        //Untar incoming builds next to the build directory and move them in once complete
+        Set<String> buildDirs;
+        StagedBuilds staged = new StagedBuilds(buildsDir);
+        try {
+            BlobStore blobs = BlobStore.get(project);
+            staged.extract(in, blobs);
+            buildDirs = staged.commit(blobs);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to read the remote stream "
+                    + project.getName() + e.getMessage(),e);
+            throw new IOException2("Failed to read the remote stream "
+                    + project.getName(), e);
+        } finally {
+            staged.discard();
+        }
+
+        //Load incoming builds from disk
         try {
-            untar.execute();
-            
-            //Load incoming builds from disk
+            loadBuilds(project, buildsDir, buildDirs);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the incoming builds of " + project.getName()
+                    + ", reloading the whole project", e);
             reloadProject(project);
+        }
 
-            //Remove publishing status actions (so that they don't confuse users).
-            //We don't know which (or how many) builds arrive - need to check them all
-            for(Run build: project.getBuilds()) {
-                StatusAction statusAction = build.getAction(StatusAction.class);
-                if(statusAction != null) {
-                    build.getActions().remove(statusAction);
-                    build.save();
-                }
+        //Remove publishing status actions (so that they don't confuse users).
+        //Recent senders strip them before sending, older ones don't
+        for(Run build: receivedBuilds(project, buildDirs)) {
+            StatusAction statusAction = build.getAction(StatusAction.class);
+            if(statusAction != null) {
+                build.getActions().remove(statusAction);
+                build.save();
             }
-            
-            //Update next build number
-            Run lastBuild = project.getLastBuild();
-            int nextBuildNumber = (lastBuild != null ? lastBuild.number : 0) + 1;
-            project.updateNextBuildNumber(nextBuildNumber);
-
-            //Update permalink symlinks
-            if (lastBuild.getResult() == Result.SUCCESS) {
-                Run<?,?> bid = project.getLastStableBuild();
-                if (bid != null) {
-                    if(Integer.parseInt(buildNumber) >= bid.number){
-                        Util.createSymlink(buildsDir, buildNumber, "lastStableBuild", new LogTaskListener(LOGGER, Level.INFO));
-                    }
+        }
+        
+        //Update next build number
+        Run lastBuild = project.getLastBuild();
+        int nextBuildNumber = (lastBuild != null ? lastBuild.number : 0) + 1;
+        project.updateNextBuildNumber(nextBuildNumber);
+
+        //Update permalink symlinks
+        if (lastBuild.getResult() == Result.SUCCESS) {
+            Run<?,?> bid = project.getLastStableBuild();
+            if (bid != null) {
+                if(Integer.parseInt(buildNumber) >= bid.number){
+                    Util.createSymlink(buildsDir, buildNumber, "lastStableBuild", new LogTaskListener(LOGGER, Level.INFO));
                 }
             }
-            if (lastBuild.getResult().isBetterOrEqualTo(Result.UNSTABLE)) {
-                Run<?,?> bid = project.getLastSuccessfulBuild();
-                if (bid != null) {
-                    if(Integer.parseInt(buildNumber) >= bid.number){
-                        Util.createSymlink(buildsDir, buildNumber, "lastSuccessfulBuild", new LogTaskListener(LOGGER, Level.INFO));
-                    }
+        }
+        if (lastBuild.getResult().isBetterOrEqualTo(Result.UNSTABLE)) {
+            Run<?,?> bid = project.getLastSuccessfulBuild();
+            if (bid != null) {
+                if(Integer.parseInt(buildNumber) >= bid.number){
+                    Util.createSymlink(buildsDir, buildNumber, "lastSuccessfulBuild", new LogTaskListener(LOGGER, Level.INFO));
                 }
             }
-            if (lastBuild.getResult() == Result.FAILURE) {
-                Run<?,?> bid = project.getLastFailedBuild();
-                if (bid != null) {
-                    if(Integer.parseInt(buildNumber) >= bid.number){
-                        Util.createSymlink(buildsDir, buildNumber, "lastFailedBuild", new LogTaskListener(LOGGER, Level.INFO));
-                    }
+        }
+        if (lastBuild.getResult() == Result.FAILURE) {
+            Run<?,?> bid = project.getLastFailedBuild();
+            if (bid != null) {
+                if(Integer.parseInt(buildNumber) >= bid.number){
+                    Util.createSymlink(buildsDir, buildNumber, "lastFailedBuild", new LogTaskListener(LOGGER, Level.INFO));
                 }
             }
-            if (lastBuild.getResult() == Result.UNSTABLE) {
-                Run<?,?> bid = project.getLastUnstableBuild();
-                if (bid != null) {
-                    if(Integer.parseInt(buildNumber) >= bid.number){
-                        Util.createSymlink(buildsDir, buildNumber, "lastUnstableBuild", new LogTaskListener(LOGGER, Level.INFO));
-                    }
+        }
+        if (lastBuild.getResult() == Result.UNSTABLE) {
+            Run<?,?> bid = project.getLastUnstableBuild();
+            if (bid != null) {
+                if(Integer.parseInt(buildNumber) >= bid.number){
+                    Util.createSymlink(buildsDir, buildNumber, "lastUnstableBuild", new LogTaskListener(LOGGER, Level.INFO));
                 }
             }
-            if (lastBuild.getResult() != Result.SUCCESS) {
-                Run<?,?> bid = project.getLastUnsuccessfulBuild();
-                if (bid != null) {
-                    if(Integer.parseInt(buildNumber) >= bid.number){
-                        Util.createSymlink(buildsDir, buildNumber, "lastUnsuccessfulBuild", new LogTaskListener(LOGGER, Level.INFO));
-                    }
+        }
+        if (lastBuild.getResult() != Result.SUCCESS) {
+            Run<?,?> bid = project.getLastUnsuccessfulBuild();
+            if (bid != null) {
+                if(Integer.parseInt(buildNumber) >= bid.number){
+                    Util.createSymlink(buildsDir, buildNumber, "lastUnsuccessfulBuild", new LogTaskListener(LOGGER, Level.INFO));
                 }
             }
-
-            //Add confirmation header
-            rsp.addHeader("X-Build-Recieved",project.getName());
-            try {
-                tidyUp();
-            } catch (IOException e) {
-                LOGGER.log(Level.WARNING, "Cleaning project " + project.getName()
-                        + "failed: " + e.getMessage(),e);
-            }
-
-        } catch (BuildException e) {
-            LOGGER.log(Level.SEVERE, "Failed to read the remote stream "
-                    + project.getName() + e.getMessage(),e);
-            throw new IOException2("Failed to read the remote stream "
-                    + project.getName(), e);
         }
     }
 
@@ -291,6 +488,63 @@ public class ExternalProjectProperty extends JobProperty<Job<?, ?>> implements
 
     }
 
+    /**
+     * Looks up the builds extracted into the given directories.
+     */
+    private static List<Run> receivedBuilds(AbstractProject project, Set<String> buildDirs) {
+        List<Run> builds = new ArrayList<Run>();
+        for (String name : buildDirs) {
+            Run build = project.getBuild(name);
+            if (build == null && name.matches("[0-9]+")) {
+                // directories named after the build number
+                build = project.getBuildByNumber(Integer.parseInt(name));
+            }
+            if (build != null) {
+                builds.add(build);
+            }
+        }
+        return builds;
+    }
+
+    /**
+     * Adds the freshly extracted builds to the build map of the project,
+     * replacing the older versions of them, if any. Unlike
+     * {@link #reloadProject(AbstractProject)}, the builds the project has
+     * already loaded stay as they are.
+     *
+     * @param buildDirs
+     *      Names of the directories of the builds.
+     * @throws IOException
+     *      If the builds can't be loaded this way, the project should be
+     *      reloaded instead.
+     */
+    @SuppressWarnings("unchecked")
+    private static void loadBuilds(AbstractProject project, File buildsDir, Set<String> buildDirs)
+            throws IOException {
+        RunMap runs = project._getRuns();
+        if (runs == null) {
+            throw new IOException("Project " + project.getName() + " not loaded yet");
+        }
+
+        for (String name : buildDirs) {
+            File buildDir = new File(buildsDir, name);
+            if (!new File(buildDir, "build.xml").isFile()) {
+                continue;
+            }
+            // the same as AbstractProject.loadBuild(File)
+            Run build;
+            try {
+                build = (Run) project.getBuildClass().getConstructor(project.getClass(), File.class)
+                        .newInstance(project, buildDir);
+            } catch (InvocationTargetException e) {
+                throw new IOException2("Failed to load build " + buildDir, e.getCause());
+            } catch (Exception e) {
+                throw new IOException2("Failed to load build " + buildDir, e);
+            }
+            runs.put(build);
+        }
+    }
+
     private static void reloadProject(AbstractProject project)
             throws IOException {
         if (project instanceof MavenModule) {
@@ -301,19 +555,6 @@ public class ExternalProjectProperty extends JobProperty<Job<?, ?>> implements
         }
     }
 
-    private static class InputStreamResource extends Resource {
-        private final InputStream in;
-
-        public InputStreamResource(String name, InputStream in) {
-            this.in = in;
-            setName(name);
-        }
-
-        public InputStream getInputStream() throws IOException {
-            return in;
-        }
-    }
-
     /*
      * Descriptor, etc..
      */
@@ -1,6 +1,5 @@
 package hudson.plugins.build_publisher;
 
-import hudson.Functions;
 import hudson.Util;
 import hudson.matrix.MatrixConfiguration;
 import hudson.maven.MavenModule;
@@ -10,11 +9,16 @@ import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.tools.ant.DirectoryScanner;
-import org.apache.tools.ant.types.FileSet;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.tools.tar.TarEntry;
 import org.apache.tools.tar.TarOutputStream;
 
@@ -22,11 +26,18 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.logging.Level;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 import org.apache.commons.httpclient.HttpException;
 
 /**
@@ -38,73 +49,246 @@ public class HTTPBuildTransmitter implements BuildTransmitter {
     private PostMethod method;
     private boolean aborted = false;
 
+    /**
+     * Size of the files the patterns left out of the last archive written.
+     */
+    private long skippedBytes;
+
     public void sendBuild(AbstractBuild build, HudsonInstance hudsonInstance)
             throws ServerFailureException {
+        sendBuilds(Collections.singletonList(build), hudsonInstance);
+    }
+
+    /**
+     * Sends the builds in one archive. A single build goes to <tt>acceptBuild</tt>,
+     * several of them to <tt>acceptBuilds</tt>, so that the remote side processes
+     * them at once.
+     */
+    public void sendBuilds(List<AbstractBuild> builds, HudsonInstance hudsonInstance)
+            throws ServerFailureException {
 
         aborted = false;
-        AbstractProject project = build.getProject();
-        
-        String jobUrl = "job/";
-        if (project instanceof MavenModule) {
-            jobUrl += hudson.Util.rawEncode(((MavenModule) project).getParent().getName())
-                    + "/"
-                    + hudson.Util.rawEncode(((MavenModule) project).getModuleName().toFileSystemName());
-        } else if (project instanceof MatrixConfiguration) {
-            jobUrl += hudson.Util.rawEncode(((MatrixConfiguration)project).getParent().getName())
-                    + "/"
-                    + Util.rawEncode(((MatrixConfiguration)project).getCombination().toString());
-        } else {
-            jobUrl += hudson.Util.rawEncode(project.getName());
-        }
+        AbstractProject project = builds.get(0).getProject();
+        String jobUrl = hudsonInstance.getUrl() + jobUrl(project);
+        boolean batch = builds.size() > 1;
 
-        method = new PostMethod(hudsonInstance.getUrl()
-                + jobUrl + "/postBuild/acceptBuild");
+        method = new PostMethod(jobUrl + (batch ? "/postBuild/acceptBuilds" : "/postBuild/acceptBuild"));
 
-        File tempFile = null;
-        OutputStream out = null;
         try {
+            // Let the remote tell what it already has, e.g. when publishing again
+            Set<String> files = null;
+            if (hudsonInstance.remoteSupports(BuildPublisherPlugin.CAPABILITY_MANIFEST)) {
+                files = requestMissingFiles(builds, jobUrl, hudsonInstance);
+            }
 
-            tempFile = File.createTempFile("hudson_bp", ".tar");
-            out = new FileOutputStream(tempFile);
-            writeToTar(out, build);
-            
-            method.setRequestEntity(new FileRequestEntity(tempFile,
-                    "application/x-tar"));
+            int compressionLevel = hudsonInstance.getCompressionLevel();
+            if (compressionLevel != Deflater.NO_COMPRESSION
+                    && !hudsonInstance.remoteSupports(BuildPublisherPlugin.CAPABILITY_GZIP)) {
+                // older remote, it wouldn't understand the compressed stream
+                compressionLevel = Deflater.NO_COMPRESSION;
+            }
+
+            if (hudsonInstance.remoteSupports(BuildPublisherPlugin.CAPABILITY_RESUME)) {
+                // the accepting request only refers to the staged archive
+                upload(builds, files, compressionLevel, jobUrl, hudsonInstance);
+            } else {
+                // pack the build while it is being sent, no temporary file needed
+                method.setRequestEntity(new TarRequestEntity(builds, files, compressionLevel, hudsonInstance));
+            }
             
-            method.setRequestHeader("X-Build-Number", String.valueOf(build.getNumber()));
+            if (batch) {
+                method.setRequestHeader("X-Build-Numbers", buildNumbers(builds));
+            } else {
+                method.setRequestHeader("X-Build-Number", String.valueOf(builds.get(0).getNumber()));
+            }
+            if (compressionLevel != Deflater.NO_COMPRESSION) {
+                method.setRequestHeader("X-Build-Encoding", CompressingOutputStream.ENCODING);
+            }
 
             executeMethod(method, hudsonInstance);
             
             //Check if remote side really accepted the build
-            Header responseHeader = method.getResponseHeader("X-Build-Recieved");
-            if((responseHeader == null) || 
-                    !project.getName().equals(responseHeader.getValue().trim())) {
-                    throw new HttpException("Remote instance didn't confirm receiving this build");
+            if (batch) {
+                Header responseHeader = method.getResponseHeader("X-Builds-Received");
+                if((responseHeader == null) ||
+                        !buildNumbers(builds).equals(responseHeader.getValue().trim())) {
+                        throw new HttpException("Remote instance didn't confirm receiving builds "
+                                + buildNumbers(builds));
+                }
+            } else {
+                Header responseHeader = method.getResponseHeader("X-Build-Recieved");
+                if((responseHeader == null) || 
+                        !project.getName().equals(responseHeader.getValue().trim())) {
+                        throw new HttpException("Remote instance didn't confirm receiving this build");
+                }
             }
+            hudsonInstance.forgetUpload(uploadKey(builds));
+            hudsonInstance.recordSkippedBytes(skippedBytes);
             
         } catch (IOException e) {
+            if (e instanceof ServerFailureException && isConflict((ServerFailureException) e)) {
+                // the staged archive doesn't match the builds anymore, start over
+                hudsonInstance.forgetUpload(uploadKey(builds));
+            }
+            if (e instanceof ServerFailureException && isNotFound((ServerFailureException) e)) {
+                // the job has been deleted on the remote side, it has to be created again
+                hudsonInstance.getRemoteJobs().forget(jobUrl(project));
+                hudsonInstance.getConfigFingerprints().forget(project.getFullName());
+            }
             // May be caused by premature call of HttpMethod.abort()
             if (!aborted) {
+                if (e instanceof ServerFailureException) {
+                    // failed in one of the earlier requests, keep its response
+                    throw (ServerFailureException) e;
+                }
                 throw new ServerFailureException(method,e);
             }
         } catch (RuntimeException e1) {
             if (!aborted) {
                 throw (e1);
             }
-        } finally {
-            if(null != out)
-                try {
-                    out.close();
-                } catch(IOException e) {
-                    HudsonInstance.LOGGER.log(Level.SEVERE, "Failed to close stream for file " + tempFile.getAbsolutePath());
+        }
+
+    }
+
+    /**
+     * Comma separated numbers of the builds.
+     */
+    private static String buildNumbers(List<AbstractBuild> builds) {
+        StringBuilder numbers = new StringBuilder();
+        for (AbstractBuild build : builds) {
+            if (numbers.length() > 0) {
+                numbers.append(',');
+            }
+            numbers.append(build.getNumber());
+        }
+        return numbers.toString();
+    }
+
+    /**
+     * Stages the archive of the builds on the remote side, continuing the
+     * previous upload of the same builds where it broke off, and points the
+     * accepting request to it.
+     *
+     * @see StagedUpload
+     */
+    private void upload(List<AbstractBuild> builds, Set<String> files, int compressionLevel,
+            String jobUrl, HudsonInstance hudsonInstance) throws IOException {
+        PostMethod accept = method;
+        String key = uploadKey(builds);
+        String uploadId = hudsonInstance.getUploadId(key);
+        long offset = 0;
+        if (uploadId == null) {
+            uploadId = hudsonInstance.newUploadId(key);
+        } else {
+            GetMethod status = new GetMethod(jobUrl + "/postBuild/upload?id=" + uploadId);
+            executeMethod(status, hudsonInstance);
+            Header committed = status.getResponseHeader("X-Upload-Offset");
+            if (committed == null) {
+                throw new HttpException("Remote instance didn't tell the state of upload " + uploadId);
+            }
+            offset = Long.parseLong(committed.getValue().trim());
+        }
+
+        UploadOutputStream upload;
+        if (hudsonInstance.getUploadConnections() > 1) {
+            ParallelUpload chunks = ParallelUpload.to(jobUrl + "/postBuild/upload?id=" + uploadId, offset,
+                    hudsonInstance);
+            upload = new UploadOutputStream(chunks, offset);
+            boolean uploaded = false;
+            try {
+                writeToTar(new CloseShieldOutputStream(upload), builds, files, compressionLevel);
+                chunks.close();
+                uploaded = true;
+            } finally {
+                if (!uploaded) {
+                    chunks.abort();
                 }
-            if (!tempFile.delete()) {
-                HudsonInstance.LOGGER.log(Level.SEVERE, "Failed to delete temporary file "
-                        + tempFile.getAbsolutePath()
-                        + ". Please delete the file manually.");
             }
+        } else {
+            TarRequestEntity entity = new TarRequestEntity(builds, files, compressionLevel, hudsonInstance, offset);
+            method = new PostMethod(jobUrl + "/postBuild/upload?id=" + uploadId + "&offset=" + offset);
+            try {
+                method.setRequestEntity(entity);
+                executeMethod(method, hudsonInstance);
+            } finally {
+                method = accept;
+            }
+            upload = entity.upload;
         }
 
+        accept.setRequestHeader("X-Upload-Id", uploadId);
+        accept.setRequestHeader("X-Upload-Length", String.valueOf(upload.getLength()));
+        accept.setRequestHeader("X-Upload-Digest", upload.getDigest());
+    }
+
+    /**
+     * Identifies the uploads of the same builds.
+     */
+    private static String uploadKey(List<AbstractBuild> builds) {
+        return builds.get(0).getProject().getFullName() + "#" + buildNumbers(builds);
+    }
+
+    private static boolean isConflict(ServerFailureException e) {
+        HttpMethod failed = e.getMethod();
+        return failed.getStatusLine() != null && failed.getStatusCode() == 409;
+    }
+
+    private static boolean isNotFound(ServerFailureException e) {
+        HttpMethod failed = e.getMethod();
+        return failed.getStatusLine() != null && failed.getStatusCode() == 404;
+    }
+
+    /**
+     * URL of the remote job, relative to the root of the remote instance.
+     */
+    private static String jobUrl(AbstractProject project) {
+        String jobUrl = "job/";
+        if (project instanceof MavenModule) {
+            jobUrl += hudson.Util.rawEncode(((MavenModule) project).getParent().getName())
+                    + "/"
+                    + hudson.Util.rawEncode(((MavenModule) project).getModuleName().toFileSystemName());
+        } else if (project instanceof MatrixConfiguration) {
+            jobUrl += hudson.Util.rawEncode(((MatrixConfiguration)project).getParent().getName())
+                    + "/"
+                    + Util.rawEncode(((MatrixConfiguration)project).getCombination().toString());
+        } else {
+            jobUrl += hudson.Util.rawEncode(project.getName());
+        }
+        return jobUrl;
+    }
+
+    /**
+     * Posts the {@link BuildManifest} of the published files of the builds to the remote job.
+     *
+     * @return paths of the files the remote side doesn't have yet.
+     */
+    private Set<String> requestMissingFiles(List<AbstractBuild> builds, String jobUrl,
+            HudsonInstance hudsonInstance) throws IOException {
+        final BuildManifest manifest = new BuildManifest();
+        for (AbstractBuild build : builds) {
+            PublishedFiles.of(build).walk(new PublishedFiles.Visitor() {
+                public boolean visit(File file, String path) throws IOException {
+                    manifest.add(path, file);
+                    return true;
+                }
+            });
+        }
+
+        StringWriter body = new StringWriter();
+        manifest.write(body);
+        PostMethod manifestMethod = new PostMethod(jobUrl + "/postBuild/checkManifest");
+        manifestMethod.setRequestEntity(new StringRequestEntity(body.toString(), "text/plain", "UTF-8"));
+
+        Set<String> missing = new HashSet<String>();
+        for (String path : executeMethodForResponse(manifestMethod, hudsonInstance).split("\n")) {
+            if (path.length() > 0) {
+                missing.add(path);
+            }
+        }
+        HudsonInstance.LOGGER.fine(builds + ": " + missing.size() + " of " + manifest.size()
+                + " files need to be sent");
+        return missing;
     }
 
     public void abortTransmission() {
@@ -131,66 +315,138 @@ public class HTTPBuildTransmitter implements BuildTransmitter {
      */
     static HttpMethod executeMethod(HttpMethodBase method,
             HudsonInstance hudsonInstance) throws ServerFailureException {
-        hudsonInstance.getHttpClient().getState().clear();
-        if ((hudsonInstance.requiresAuthentication())) {
-            // We need to get authenticated.
-            // On some containers and depending on the security configuration,
-            // simply sending HTTP BASIC auth would work, but in legacy authentication
-            // with some containers in particular, the behavior tends to be
-            // different.
-            // So while lengthy, let's emulate the user behavior when
-            // they clock the login link, which is most stable across different
-            // environment
-            GetMethod loginMethod = new GetMethod(hudsonInstance.getUrl()
-                    + "login");
-            followRedirects(loginMethod, hudsonInstance);
+        return executeMethod(method, hudsonInstance, null);
+    }
+
+    private static HttpMethod executeMethod(HttpMethodBase method,
+            HudsonInstance hudsonInstance, StringBuilder response) throws ServerFailureException {
+        if (!hudsonInstance.requiresAuthentication()) {
+            return followRedirects(method, hudsonInstance, hudsonInstance.newHttpState(), response);
+        }
+
+        if (hudsonInstance.isPreemptiveAuthentication()) {
+            // the credentials of the session go along with the request, without waiting for a challenge
+            method.getParams().setAuthenticationPreemptive(true);
+        }
+
+        // reuse the session of the previous requests as long as the remote accepts it
+        HttpState session = hudsonInstance.getSession();
+        try {
+            return followRedirects(method, hudsonInstance, session, response);
+        } catch (ServerFailureException e) {
+            HttpMethod failed = e.getMethod();
+            if (failed.getStatusLine() == null
+                    || (failed.getStatusCode() != 401 && failed.getStatusCode() != 403)) {
+                throw e;
+            }
+            // the session has probably expired, log in again and retry once
+            hudsonInstance.invalidateSession(session);
+            return followRedirects(method, hudsonInstance, hudsonInstance.getSession(), response);
+        }
+    }
 
+    /**
+     * Authenticates to the remote instance.
+     *
+     * @return
+     *      State holding the authenticated session, to be used for the subsequent requests.
+     */
+    static HttpState login(HudsonInstance hudsonInstance) throws ServerFailureException {
+        HttpState state = hudsonInstance.newHttpState();
+        if (hudsonInstance.isPreemptiveAuthentication()) {
+            // HTTP BASIC with the password or API token sent with every request, no login round trips,
+            // see executeMethod()
+            state.setCredentials(authScope(hudsonInstance), new UsernamePasswordCredentials(
+                    hudsonInstance.getLogin(), hudsonInstance.getPassword()));
+            return state;
+        }
+
+        // We need to get authenticated.
+        // On some containers and depending on the security configuration,
+        // simply sending HTTP BASIC auth would work, but in legacy authentication
+        // with some containers in particular, the behavior tends to be
+        // different.
+        // So while lengthy, let's emulate the user behavior when
+        // they clock the login link, which is most stable across different
+        // environment
+        GetMethod loginMethod = new GetMethod(hudsonInstance.getUrl()
+                + "login");
+        followRedirects(loginMethod, hudsonInstance, state, null);
+
+        try {
+            login("j_security_check", hudsonInstance, state);
+        } catch (ServerFailureException original) {
+            // Here if the servlet authentication is not available.
             try {
-                login("j_security_check", hudsonInstance);
-            } catch (ServerFailureException original) {
-                // Here if the servlet authentication is not available.
-                try {
-                    login("j_acegi_security_check", hudsonInstance);
-                } catch (ServerFailureException acegy) {
-                    // Only one of these endpoints is supposed to exists at a time.
-                    // Do not report 404 as the other exception is likely to be more interesting.
-                    throw (acegy.getMethod().getStatusCode() == 404)
-                        ? original
-                        : acegy
-                    ;
-                }
+                login("j_acegi_security_check", hudsonInstance, state);
+            } catch (ServerFailureException acegy) {
+                // Only one of these endpoints is supposed to exists at a time.
+                // Do not report 404 as the other exception is likely to be more interesting.
+                throw (acegy.getMethod().getStatusCode() == 404)
+                    ? original
+                    : acegy
+                ;
             }
         }
+        return state;
+    }
 
-        return followRedirects(method, hudsonInstance);
+    /**
+     * Limits the credentials to the remote host, so that they are not sent
+     * anywhere else if we get redirected.
+     */
+    private static AuthScope authScope(HudsonInstance hudsonInstance) {
+        try {
+            return new AuthScope(new URL(hudsonInstance.getUrl()).getHost(), AuthScope.ANY_PORT);
+        } catch (MalformedURLException e) {
+            return AuthScope.ANY;
+        }
+    }
+
+    /**
+     * Executes the given method the same way as {@link #executeMethod(HttpMethodBase, HudsonInstance)}
+     * does and returns the body of the response.
+     */
+    static String executeMethodForResponse(HttpMethodBase method,
+            HudsonInstance hudsonInstance) throws ServerFailureException {
+        StringBuilder response = new StringBuilder();
+        executeMethod(method, hudsonInstance, response);
+        return response.toString();
     }
     
-    private static void login(String type, HudsonInstance hudsonInstance)
+    private static void login(String type, HudsonInstance hudsonInstance, HttpState state)
             throws ServerFailureException {
         PostMethod servletSecurityMethod = new PostMethod(hudsonInstance.getUrl() + type);
         servletSecurityMethod.addParameter("j_username", hudsonInstance.getLogin());
         servletSecurityMethod.addParameter("j_password", hudsonInstance.getPassword());
         servletSecurityMethod.addParameter("action", "login");
-        followRedirects(servletSecurityMethod, hudsonInstance);
+        followRedirects(servletSecurityMethod, hudsonInstance, state, null);
     }
 
     // see executeMethod for contracts
+    // the response body is read into 'response' if requested, as it is gone once the connection is released
     private static HttpMethod followRedirects(HttpMethodBase method,
-            HudsonInstance hudsonInstance) throws ServerFailureException {
+            HudsonInstance hudsonInstance, HttpState state, StringBuilder response) throws ServerFailureException {
         int statusCode;
         HttpClient client = hudsonInstance.getHttpClient();
         try {
-            statusCode = client.executeMethod(method);
+            statusCode = client.executeMethod(null, method, state);
 
-            if(statusCode<300)
+            if(statusCode<300) {
+                if(response != null) {
+                    InputStream body = method.getResponseBodyAsStream();
+                    if(body != null)
+                        response.append(IOUtils.toString(body, method.getResponseCharSet()));
+                }
                 return method;
+            }
             if(statusCode<400) {
                 Header locationHeader = method.getResponseHeader("location");
                 if (locationHeader != null) {
                     String redirectLocation = locationHeader.getValue();
                     method.setURI(new org.apache.commons.httpclient.URI(/*method.getURI(),*/ redirectLocation,
                                     true));
-                    return followRedirects(method, hudsonInstance);
+                    return followRedirects(method, hudsonInstance, state, response);
                 }
             }
 
@@ -206,55 +462,176 @@ public class HTTPBuildTransmitter implements BuildTransmitter {
     /**
      * Writes to a tar stream and stores obtained files to the base dir.
      *
+     * @param only
+     *      If not null, only these files of the build directories are written.
+     *      <tt>build.xml</tt> is always written.
      * @return number of files/directories that are written.
      */
     // most of this is taken from somewhere of Hudson code. Perhaps it would be
     // good idea to put it in one place.
-    private Integer writeToTar(OutputStream out, AbstractBuild build)
-            throws IOException {
-        File buildDir = build.getRootDir();
-        File baseDir = buildDir.getParentFile();
-        String buildXmlFile = buildDir.getName() + "/build.xml";
-        FileSet fileSet = new FileSet();
-        fileSet.setDir(baseDir);
-        fileSet.setIncludes(buildDir.getName() + "/**");
-        fileSet.setExcludes(buildXmlFile);
-
-        byte[] buffer = new byte[8192];
+    private Integer writeToTar(OutputStream out, List<AbstractBuild> builds, Set<String> only,
+            int compressionLevel) throws IOException {
+        CompressingOutputStream compression = null;
+        if (compressionLevel != Deflater.NO_COMPRESSION) {
+            out = compression = new CompressingOutputStream(out, compressionLevel);
+        }
 
         TarOutputStream tar = new TarOutputStream(new BufferedOutputStream(out));
         tar.setLongFileMode(TarOutputStream.LONGFILE_GNU);
 
-        DirectoryScanner dirScanner = fileSet
-                .getDirectoryScanner(new org.apache.tools.ant.Project());
-        String[] files = dirScanner.getIncludedFiles();
-        for (String fileName : files) {
+        int count = 0;
+        skippedBytes = 0;
+        for (AbstractBuild build : builds) {
+            count += writeToTar(tar, compression, build, only);
+        }
 
-            if (aborted) {
-                break;
-            }
+        tar.close();
 
-            if (Functions.isWindows()) {
-                fileName = fileName.replace('\\', '/');
+        return count;
+    }
+
+    private int writeToTar(TarOutputStream tar, CompressingOutputStream compression,
+            AbstractBuild build, Set<String> only) throws IOException {
+        return writeToTar(tar, compression, build.getRootDir(), build.getTimeInMillis(),
+                PublishedFiles.of(build), only);
+    }
+
+    /**
+     * Writes one build directory to tar. The entries only depend on the
+     * files, so the archive comes out the same every time it is written, as
+     * a staged upload needs it to be resumed.
+     *
+     * @param timestamp
+     *      Modification time of <tt>build.xml</tt> in the archive, as the file
+     *      itself changes whenever the build is saved.
+     */
+    /*package*/ int writeToTar(final TarOutputStream tar, final CompressingOutputStream compression,
+            File buildDir, long timestamp, PublishedFiles published, final Set<String> only) throws IOException {
+        String buildXmlFile = buildDir.getName() + "/build.xml";
+
+        final byte[] buffer = new byte[8192];
+        final int[] count = {0};
+        published.walk(new PublishedFiles.Visitor() {
+            public boolean visit(File file, String path) throws IOException {
+                if (aborted) {
+                    return false;
+                }
+                if (only != null && !only.contains(path)) {
+                    return true;
+                }
+                if (compression != null) {
+                    compression.setCompressing(CompressingOutputStream.isCompressible(file));
+                }
+                writeFileToTar(tar, file, path, buffer);
+                count[0]++;
+                return true;
             }
+        });
+        skippedBytes += published.getSkippedBytes();
+
+        File buildFile = new File(buildDir, "build.xml");
+        // the publishing status means nothing to the remote side
+        byte[] bytes = stripStatusAction(FileUtils.readFileToByteArray(buildFile));
+        if (compression != null) {
+            compression.setCompressing(true);
+        }
+        writeStreamToTar(tar, new ByteArrayInputStream(bytes), buildXmlFile,
+                bytes.length, timestamp, buffer);
+
+        return count[0];
+    }
+
+    /**
+     * Removes the {@link StatusAction} from the serialized build, so that the
+     * receiving side doesn't have to.
+     */
+    static String stripStatusAction(String buildXml) {
+        return STATUS_ACTION.matcher(buildXml).replaceAll("");
+    }
+
+    /**
+     * Removes the {@link StatusAction} from the serialized build, leaving the
+     * rest of it byte for byte as it is, whatever the encoding of the file.
+     */
+    static byte[] stripStatusAction(byte[] buildXml) throws IOException {
+        // every byte maps to a char of its own, and the element is plain ASCII
+        String latin1 = new String(buildXml, "ISO-8859-1");
+        if (!STATUS_ACTION.matcher(latin1).find()) {
+            return buildXml;
+        }
+        return stripStatusAction(latin1).getBytes("ISO-8859-1");
+    }
+
+    private static final Pattern STATUS_ACTION = Pattern.compile(
+            "[ \\t]*<hudson\\.plugins\\.build__publisher\\.StatusAction(?:\\s[^>]*?)?"
+            + "(?:/>|>.*?</hudson\\.plugins\\.build__publisher\\.StatusAction>)(?:\\r?\\n)?",
+            Pattern.DOTALL);
 
-            File file = new File(baseDir, fileName);
+    /**
+     * {@link RequestEntity} that writes the build archive directly into the
+     * connection, so packing overlaps with the upload.
+     *
+     * <p>
+     * The length is not known in advance, so the request is sent with chunked
+     * transfer encoding. The entity can be written repeatedly (e.g. after a
+     * redirect) as the archive is produced from the build directory every time.
+     */
+    private final class TarRequestEntity implements RequestEntity {
+        private final List<AbstractBuild> builds;
+        private final Set<String> files;
+        private final int compressionLevel;
+        private final HudsonInstance hudsonInstance;
+
+        /**
+         * Where a staged upload continues, -1 if the archive is not staged.
+         */
+        private final long offset;
+        private UploadOutputStream upload;
+
+        TarRequestEntity(List<AbstractBuild> builds, Set<String> files, int compressionLevel,
+                HudsonInstance hudsonInstance) {
+            this(builds, files, compressionLevel, hudsonInstance, -1);
+        }
+
+        TarRequestEntity(List<AbstractBuild> builds, Set<String> files, int compressionLevel,
+                HudsonInstance hudsonInstance, long offset) {
+            this.builds = builds;
+            this.files = files;
+            this.compressionLevel = compressionLevel;
+            this.hudsonInstance = hudsonInstance;
+            this.offset = offset;
+        }
 
-            if (!file.isDirectory()) {
-                writeStreamToTar(tar, new FileInputStream(file), fileName, file
-                        .length(), buffer);
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public void writeRequest(OutputStream out) throws IOException {
+            // compressed bytes are what goes over the wire
+            out = hudsonInstance.throttle(out);
+            if (offset >= 0) {
+                // the archive is produced from the start, to digest it as a whole
+                out = upload = new UploadOutputStream(out, offset);
             }
+            writeToTar(new CloseShieldOutputStream(out), builds, files, compressionLevel);
         }
 
-        File buildFile = new File(build.getRootDir(), "build.xml");
-        String buildXml = Util.loadFile(buildFile);
-        byte[] bytes = buildXml.getBytes();
-        writeStreamToTar(tar, new ByteArrayInputStream(bytes), buildXmlFile,
-                bytes.length, buffer);
+        public long getContentLength() {
+            return -1; // chunked
+        }
 
-        tar.close();
+        public String getContentType() {
+            return "application/x-tar";
+        }
+    }
 
-        return files.length;
+    /**
+     * Writes the file to tar with the time it was last modified, as the entry
+     * would get the current time otherwise.
+     */
+    private void writeFileToTar(TarOutputStream tar, File file, String fileName, byte[] buf)
+            throws IOException {
+        writeStreamToTar(tar, new FileInputStream(file), fileName, file.length(), file.lastModified(), buf);
     }
 
     /**
@@ -263,11 +640,12 @@ public class HTTPBuildTransmitter implements BuildTransmitter {
      * @param in The stream to read from. Will be closed upon method completion.
      */
     private void writeStreamToTar(TarOutputStream tar, InputStream in,
-            String fileName, long length, byte[] buf
+            String fileName, long length, long modTime, byte[] buf
     ) throws IOException {
         try {
             TarEntry te = new TarEntry(fileName);
             te.setSize(length);
+            te.setModTime(modTime);
 
             tar.putNextEntry(te);
 
@@ -3,6 +3,7 @@
  */
 package hudson.plugins.build_publisher;
 
+import hudson.Extension;
 import hudson.ProxyConfiguration;
 import hudson.Util;
 import hudson.XmlFile;
@@ -10,27 +11,45 @@ import hudson.model.Item;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Hudson;
-import hudson.model.Run;
+import hudson.model.PeriodicWork;
 import hudson.model.listeners.ItemListener;
 import hudson.plugins.build_publisher.StatusInfo.State;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 import hudson.util.Secret;
 import jenkins.model.Jenkins;
 
+import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.SimpleHttpConnectionManager;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.params.HttpClientParams;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 
 /**
  * Represents remote public Hudson instance.
@@ -41,18 +60,153 @@ public final class HudsonInstance {
 
     static final Logger LOGGER = Logger.getLogger(Hudson.class.getName());
 
+    /**
+     * Seconds an unused connection is kept open by default.
+     */
+    public static final int DEFAULT_IDLE_TIMEOUT = 60;
+
+    /**
+     * Consecutive connection failures that suspend the publishing by default.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * MiB of the archive uploaded in one request by default, when uploading in parallel.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 16;
+
+    /**
+     * Largest chunk in MiB. Every worker holds up to {@link #getUploadConnections()}
+     * + 1 chunks in memory.
+     */
+    public static final int MAX_CHUNK_SIZE = 64;
+
     private String url;
     private String name;
     private String login;
     private Secret password;
 
+    /**
+     * Deflate level of the build archives, 0 means they are sent uncompressed.
+     */
+    private int compressionLevel;
+
+    /**
+     * Number of {@link PublisherThread}s, 0 means the default of one.
+     */
+    private int workers;
+
+    /**
+     * Size of the pool of keep-alive connections to the remote instance.
+     * Never less than one per worker.
+     */
+    private int maxConnections;
+
+    /**
+     * Seconds after which unused pooled connections are closed, 0 means
+     * {@link #DEFAULT_IDLE_TIMEOUT}.
+     */
+    private int idleTimeout;
+
+    /**
+     * Number of failed attempts after which a build is given up on, 0 means
+     * it is retried until it gets published.
+     */
+    private int maxAttempts;
+
+    /**
+     * Consecutive connection failures after which the publishing is suspended
+     * until the remote instance responds again, 0 means
+     * {@link #DEFAULT_FAILURE_THRESHOLD}.
+     */
+    private int failureThreshold;
+
+    /**
+     * Upload limit in KiB/s, 0 means unlimited.
+     */
+    private int bandwidth;
+
+    /**
+     * Upload limits for the times of the day, overriding {@link #bandwidth}.
+     *
+     * @see BandwidthSchedule
+     */
+    private String bandwidthSchedule;
+
+    /**
+     * Connections each build archive is uploaded over at once, 0 or 1 means
+     * it is sent in a single stream.
+     *
+     * @see ParallelUpload
+     */
+    private int uploadConnections;
+
+    /**
+     * MiB of the archive uploaded in one request when uploading in parallel,
+     * 0 means {@link #DEFAULT_CHUNK_SIZE}.
+     */
+    private int chunkSize;
+
+    /**
+     * Most builds of one project sent in a single request, 0 or 1 means every
+     * build is sent on its own.
+     */
+    private int batchSize;
+
+    /**
+     * Seconds to wait for further builds of the project to fill the batch.
+     */
+    private int batchWindow;
+
+    /**
+     * Send the credentials with every request using HTTP BASIC, instead of
+     * logging in through the login form.
+     */
+    private boolean preemptiveAuthentication;
+
     // Builds to be published
     private transient LinkedHashSet<AbstractBuild> publishRequestQueue = new LinkedHashSet<AbstractBuild>();
+    private transient QueueJournal journal;
 
-    private transient PublisherThread publisherThread;
-    transient BuildTransmitter buildTransmitter;
+    /**
+     * Priority of the queued builds.
+     */
+    private transient Map<AbstractBuild, QueuedBuild> priorities;
+
+    /**
+     * Last failure of the queued builds that wait for a retry.
+     */
+    private transient Map<AbstractBuild, ThreadState.ErrorRecoveryWait> failures;
+
+    // Full names of the projects whose builds are being published right now
+    private transient Set<String> projectsInProgress = new HashSet<String>();
+
+    private transient List<PublisherThread> publisherThreads;
     private transient HttpClient client;
 
+    // Authenticated session shared by the workers, null until logged in
+    private transient HttpState session;
+    private transient Object sessionLock = new Object();
+
+    // Optional protocol features the remote instance understands, null if not known yet
+    private transient volatile Set<String> remoteCapabilities;
+
+    private transient ConfigFingerprints configFingerprints;
+
+    private transient RemoteJobs remoteJobs;
+
+    private transient CircuitBreaker circuitBreaker;
+
+    // Ids of the archives staged on the remote instance, by the builds they contain
+    private transient Map<String, String> uploads;
+
+    private transient BandwidthSchedule parsedBandwidthSchedule;
+    private transient TokenBucket uploadBucket;
+    private transient ThroughputMeter throughput;
+
+    // Bytes of the published builds left out by the include/exclude patterns, since the start
+    private transient AtomicLong skippedBytes;
+
     public String getLogin() {
         return login;
     }
@@ -76,15 +230,78 @@ public final class HudsonInstance {
         return Util.fixEmpty(login)!=null;
     }
 
+    public boolean isPreemptiveAuthentication() {
+        return preemptiveAuthentication;
+    }
+
+    public void setPreemptiveAuthentication(boolean preemptiveAuthentication) {
+        this.preemptiveAuthentication = preemptiveAuthentication;
+    }
+
     public HudsonInstance(String name, String url, String login, String password) {
+        this(name, url, login, password, true);
+    }
+
+    /**
+     * @param start
+     *      False to only hold the settings, see {@link #reconfigure(HudsonInstance)}.
+     *      The queue is restored and the workers started by {@link #start()} then.
+     */
+    /*package*/ HudsonInstance(String name, String url, String login, String password, boolean start) {
         this.name = name;
         this.url = url;
         this.login = login;
         this.password = Secret.fromString(password);
 
         initVariables();
+        if (start) {
+            start();
+        }
+    }
+
+    /*package*/ void start() {
         restoreQueue();
-        initPublisherThread();
+        initPublisherThreads();
+    }
+
+    /**
+     * Takes over the settings of a new instance of the same name that was
+     * not started. The queue, its journal and the workers stay, so that there
+     * is only ever one of them for the name.
+     */
+    /*package*/ void reconfigure(HudsonInstance config) {
+        boolean remoteChanged = !Util.fixNull(config.getUrl()).equals(Util.fixNull(getUrl()))
+                || !Util.fixNull(config.login).equals(Util.fixNull(login))
+                || !config.password.equals(password);
+        url = config.url;
+        login = config.login;
+        password = config.password;
+        preemptiveAuthentication = config.preemptiveAuthentication;
+        compressionLevel = config.compressionLevel;
+        maxConnections = config.maxConnections;
+        idleTimeout = config.idleTimeout;
+        maxAttempts = config.maxAttempts;
+        failureThreshold = config.failureThreshold;
+        bandwidth = config.bandwidth;
+        bandwidthSchedule = config.bandwidthSchedule;
+        parsedBandwidthSchedule = config.parsedBandwidthSchedule;
+        uploadConnections = config.uploadConnections;
+        chunkSize = config.chunkSize;
+        batchSize = config.batchSize;
+        batchWindow = config.batchWindow;
+        if (remoteChanged) {
+            synchronized (sessionLock) {
+                session = null;
+            }
+            forgetRemoteCapabilities();
+            remoteJobs = new RemoteJobs(this);
+        }
+        // also applies the connection limits
+        setWorkers(config.getWorkers());
+        synchronized (this) {
+            // the limits of the batches and the retries may have changed
+            notifyAll();
+        }
     }
 
     public String getUrl() {
@@ -100,6 +317,340 @@ public final class HudsonInstance {
         return name;
     }
 
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9: " + compressionLevel);
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getWorkers() {
+        return Math.max(1, workers);
+    }
+
+    /**
+     * Sets the number of builds that can be published concurrently and starts
+     * the additional {@link PublisherThread}s if needed.
+     */
+    public void setWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("There has to be at least one worker: " + workers);
+        }
+        this.workers = workers;
+        configureConnections();
+        if (publisherThreads != null) {
+            initPublisherThreads();
+        }
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param maxAttempts
+     *      0 to never give up.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("Number of attempts can not be negative: " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold > 0 ? failureThreshold : DEFAULT_FAILURE_THRESHOLD;
+    }
+
+    /**
+     * @param failureThreshold
+     *      0 for the default.
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        if (failureThreshold < 0) {
+            throw new IllegalArgumentException("Failure threshold can not be negative: " + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+    }
+
+    public int getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * @param bandwidth
+     *      KiB/s, 0 for unlimited.
+     */
+    public void setBandwidth(int bandwidth) {
+        if (bandwidth < 0) {
+            throw new IllegalArgumentException("Bandwidth can not be negative: " + bandwidth);
+        }
+        this.bandwidth = bandwidth;
+    }
+
+    public String getBandwidthSchedule() {
+        return bandwidthSchedule;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *      If the schedule is not valid.
+     */
+    public void setBandwidthSchedule(String bandwidthSchedule) {
+        parsedBandwidthSchedule = BandwidthSchedule.parse(bandwidthSchedule);
+        this.bandwidthSchedule = bandwidthSchedule;
+    }
+
+    /**
+     * Gets the upload limit that applies right now.
+     *
+     * @return KiB/s, 0 if unlimited.
+     */
+    public int getCurrentBandwidth() {
+        int scheduled = parsedBandwidthSchedule.getBandwidth(Calendar.getInstance());
+        return scheduled >= 0 ? scheduled : bandwidth;
+    }
+
+    /**
+     * Applies the upload limit of the current time of the day.
+     */
+    /*package*/ void updateBandwidth() {
+        uploadBucket.setRate(getCurrentBandwidth() * 1024L);
+    }
+
+    /**
+     * Limits the upload to the instance to its bandwidth and to the bandwidth
+     * shared by all the instances.
+     */
+    /*package*/ OutputStream throttle(OutputStream out) {
+        updateBandwidth();
+        return new ThrottledOutputStream(out, throughput, uploadBucket, BuildPublisher.DESCRIPTOR.getUploadBucket());
+    }
+
+    /**
+     * Measured upload rate to the instance.
+     */
+    public ThroughputMeter getThroughput() {
+        return throughput;
+    }
+
+    /*package*/ void recordSkippedBytes(long bytes) {
+        skippedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Gets the size of the files of the published builds the include/exclude
+     * patterns have left out since Jenkins started.
+     */
+    public String getSkippedBytesString() {
+        return ThroughputMeter.formatSize(skippedBytes.get());
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public int getBatchSize() {
+        return Math.max(1, batchSize);
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 0) {
+            throw new IllegalArgumentException("Batch size can not be negative: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchWindow() {
+        return batchWindow;
+    }
+
+    public void setBatchWindow(int batchWindow) {
+        if (batchWindow < 0) {
+            throw new IllegalArgumentException("Batch window can not be negative: " + batchWindow);
+        }
+        this.batchWindow = batchWindow;
+    }
+
+    public int getMaxConnections() {
+        // fewer connections would only make the workers wait for each other
+        return Math.max(maxConnections, getWorkers() * getUploadConnections());
+    }
+
+    public int getUploadConnections() {
+        return Math.max(1, uploadConnections);
+    }
+
+    /**
+     * @param uploadConnections
+     *      0 or 1 to upload in a single stream.
+     */
+    public void setUploadConnections(int uploadConnections) {
+        if (uploadConnections < 0) {
+            throw new IllegalArgumentException("Number of upload connections can not be negative: " + uploadConnections);
+        }
+        this.uploadConnections = uploadConnections;
+        configureConnections();
+    }
+
+    public int getChunkSize() {
+        // configured before there was a limit
+        return chunkSize > 0 ? Math.min(chunkSize, MAX_CHUNK_SIZE) : DEFAULT_CHUNK_SIZE;
+    }
+
+    /**
+     * @param chunkSize
+     *      MiB, 0 for the default.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 0 and " + MAX_CHUNK_SIZE + " MiB: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param maxConnections
+     *      0 to keep one connection per worker.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 0) {
+            throw new IllegalArgumentException("Number of connections can not be negative: " + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+        configureConnections();
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout > 0 ? idleTimeout : DEFAULT_IDLE_TIMEOUT;
+    }
+
+    /**
+     * @param idleTimeout
+     *      Seconds, 0 for the default.
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("Idle timeout can not be negative: " + idleTimeout);
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
+    private void configureConnections() {
+        HttpConnectionManagerParams params = getConnectionManager().getParams();
+        params.setDefaultMaxConnectionsPerHost(getMaxConnections());
+        params.setMaxTotalConnections(getMaxConnections());
+    }
+
+    private MultiThreadedHttpConnectionManager getConnectionManager() {
+        return (MultiThreadedHttpConnectionManager) client.getHttpConnectionManager();
+    }
+
+    /**
+     * Closes the pooled connections that have not been used for longer than
+     * {@link #getIdleTimeout()}, before the remote side or something in
+     * between drops them.
+     */
+    /*package*/ void closeIdleConnections() {
+        MultiThreadedHttpConnectionManager connectionManager = getConnectionManager();
+        connectionManager.closeIdleConnections(getIdleTimeout() * 1000L);
+        connectionManager.deleteClosedConnections();
+    }
+
+    /**
+     * Job configurations already submitted to this instance.
+     */
+    /*package*/ ConfigFingerprints getConfigFingerprints() {
+        return configFingerprints;
+    }
+
+    /**
+     * Jobs known to exist on this instance.
+     */
+    /*package*/ RemoteJobs getRemoteJobs() {
+        return remoteJobs;
+    }
+
+    /**
+     * Checks whether the remote build-publisher understands the given optional
+     * part of the publishing protocol.
+     *
+     * @see BuildPublisherPlugin#doCapabilities
+     */
+    /*package*/ boolean remoteSupports(String capability) {
+        Set<String> capabilities = remoteCapabilities;
+        if (capabilities == null) {
+            capabilities = new HashSet<String>();
+            try {
+                String response = HTTPBuildTransmitter.executeMethodForResponse(
+                        new GetMethod(getUrl() + "plugin/build-publisher/capabilities"), this);
+                for (String line : response.split("\\s+")) {
+                    if (line.length() > 0) {
+                        capabilities.add(line);
+                    }
+                }
+            } catch (ServerFailureException e) {
+                if (e.getMethod().getStatusLine() == null || e.getMethod().getStatusCode() != 404) {
+                    // not a verdict of the remote side, ask again next time
+                    LOGGER.log(Level.WARNING, "Failed to query capabilities of " + getUrl(), e);
+                    return false;
+                }
+                // the remote plugin is too old to tell
+            }
+            remoteCapabilities = capabilities;
+        }
+        return capabilities.contains(capability);
+    }
+
+    /**
+     * Makes the next {@link #remoteSupports(String)} ask the remote instance again,
+     * in case it has been upgraded or downgraded meanwhile.
+     */
+    /*package*/ void forgetRemoteCapabilities() {
+        remoteCapabilities = null;
+    }
+
+    /**
+     * Gets the id of the upload of the builds that broke off.
+     *
+     * @return null if there is none.
+     * @see StagedUpload
+     */
+    /*package*/ synchronized String getUploadId(String builds) {
+        return uploads.get(builds);
+    }
+
+    /*package*/ synchronized String newUploadId(String builds) {
+        String id = UUID.randomUUID().toString();
+        uploads.put(builds, id);
+        return id;
+    }
+
+    /*package*/ synchronized void forgetUpload(String builds) {
+        uploads.remove(builds);
+    }
+
+    /**
+     * Forgets the uploads of all the batches the build was part of, once
+     * it leaves the queue, whether published or given up on.
+     */
+    private void forgetUploads(AbstractBuild build) {
+        String prefix = build.getProject().getFullName() + "#";
+        String number = String.valueOf(build.getNumber());
+        for (Iterator<String> it = uploads.keySet().iterator(); it.hasNext();) {
+            String key = it.next();
+            // keys are the project and the comma separated build numbers
+            if (key.startsWith(prefix)
+                    && Arrays.asList(key.substring(prefix.length()).split(",")).contains(number)) {
+                it.remove();
+            }
+        }
+    }
+
     /**
      * Append the build to the publishing queue.
      */
@@ -112,11 +663,67 @@ public final class HudsonInstance {
     /**
      * Same as previous, but doesn't set status for the build.
      */
-    public synchronized void publishBuild(AbstractBuild build, StatusInfo status) {
-        publishRequestQueue.add(build);
-        StatusAction.setBuildStatusAction(build, status);
-        saveQueue();
-        notifyAll();
+    public void publishBuild(AbstractBuild build, StatusInfo status) {
+        // outside of the lock, it's up to the extensions
+        QueuedBuild queued = queued(build);
+        synchronized (this) {
+            if (enqueue(build, queued)) {
+                journal.add(build.getProject().getFullName(), build.getNumber());
+            }
+            StatusAction.setBuildStatusAction(build, status);
+            if (!projectsInProgress.contains(build.getProject().getFullName())) {
+                supersedeOlderBuilds(build.getProject());
+            }
+            notifyAll();
+        }
+        journal.sync();
+    }
+
+    private QueuedBuild queued(AbstractBuild build) {
+        BuildPublisher publisher = BuildPublisher.of(build);
+        return new QueuedBuild(PublishPriority.of(build, this), publisher != null && publisher.isLatestOnly(),
+                System.currentTimeMillis());
+    }
+
+    private boolean enqueue(AbstractBuild build, QueuedBuild queued) {
+        if (!publishRequestQueue.add(build)) {
+            return false;
+        }
+        priorities.put(build, queued);
+        return true;
+    }
+
+    /**
+     * Drops the queued builds of the project that are older than its newest
+     * queued build, if only the latest build of the project is to be published.
+     * The project must not be in progress.
+     *
+     * @return true if any build was dropped.
+     */
+    private boolean supersedeOlderBuilds(AbstractProject project) {
+        AbstractBuild newest = null;
+        for (AbstractBuild request : publishRequestQueue) {
+            if (request.getProject() == project && (newest == null || request.getNumber() > newest.getNumber())) {
+                newest = request;
+            }
+        }
+        QueuedBuild queued = newest != null ? priorities.get(newest) : null;
+        if (queued == null || !queued.latestOnly) {
+            return false;
+        }
+
+        List<AbstractBuild> superseded = new ArrayList<AbstractBuild>();
+        for (AbstractBuild request : publishRequestQueue) {
+            if (request.getProject() == project && request != newest) {
+                superseded.add(request);
+            }
+        }
+        StatusInfo status = new StatusInfo(State.INTERRUPTED, "Superseded by build #" + newest.getNumber(),
+                name, null);
+        for (AbstractBuild request : superseded) {
+            dequeue(request, status);
+        }
+        return !superseded.isEmpty();
     }
 
     //Disable aborting until it is properly implemented
@@ -133,7 +740,7 @@ public final class HudsonInstance {
             @Override
             public void onLoaded() {
                 restoreQueue();
-                initPublisherThread();
+                initPublisherThreads();
             }
         });
 
@@ -142,12 +749,34 @@ public final class HudsonInstance {
 
     private void initVariables() {
         publishRequestQueue = new LinkedHashSet<AbstractBuild>();
-        buildTransmitter = new HTTPBuildTransmitter();
-        SimpleHttpConnectionManager connectionManager = new SimpleHttpConnectionManager();
+        priorities = new HashMap<AbstractBuild, QueuedBuild>();
+        failures = new LinkedHashMap<AbstractBuild, ThreadState.ErrorRecoveryWait>();
+        journal = new QueueJournal(new File(Hudson.getInstance().getRootDir(), "bp-" + name + ".journal"));
+        projectsInProgress = new HashSet<String>();
+        sessionLock = new Object();
+        configFingerprints = new ConfigFingerprints(new File(Hudson.getInstance().getRootDir(),
+                "bp-" + name + "-configs.xml"));
+        remoteJobs = new RemoteJobs(this);
+        circuitBreaker = new CircuitBreaker(this);
+        uploads = new HashMap<String, String>();
+        uploadBucket = new TokenBucket();
+        throughput = new ThroughputMeter();
+        skippedBytes = new AtomicLong();
+        try {
+            parsedBandwidthSchedule = BandwidthSchedule.parse(bandwidthSchedule);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Ignoring the bandwidth schedule of " + name, e);
+            parsedBandwidthSchedule = BandwidthSchedule.parse(null);
+        }
+        // keep-alive connections shared by all the workers
+        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        // the remote side may have closed the connection while it was idle
+        connectionManager.getParams().setStaleCheckingEnabled(true);
         HttpClientParams params = new HttpClientParams();
         //set SO_TIMEOUT to prevent thread hang-up
         params.setSoTimeout(10 * 60 * 1000);
         client = new HttpClient(params, connectionManager);
+        configureConnections();
         loadProxy();
     }
 
@@ -161,89 +790,399 @@ public final class HudsonInstance {
         }
     }
     
-    /*package*/ void initPublisherThread() {
-        if(publisherThread == null || !publisherThread.isAlive()) {
-            publisherThread = new PublisherThread(HudsonInstance.this);
-            publisherThread.start();
+    /**
+     * Starts the workers that are missing or dead, and retires the ones
+     * over the number of workers.
+     */
+    /*package*/ synchronized void initPublisherThreads() {
+        List<PublisherThread> threads = new ArrayList<PublisherThread>();
+        for (int i = 0; i < getWorkers(); i++) {
+            PublisherThread thread = (publisherThreads != null && i < publisherThreads.size())
+                    ? publisherThreads.get(i) : null;
+            if(thread == null || !thread.isAlive()) {
+                thread = new PublisherThread(HudsonInstance.this, i);
+                thread.start();
+            }
+            threads.add(thread);
+        }
+        if (publisherThreads != null) {
+            for (PublisherThread thread : publisherThreads.subList(threads.size(), publisherThreads.size())) {
+                thread.retire();
+            }
         }
+        publisherThreads = Collections.unmodifiableList(threads);
+        notifyAll();
+    }
+
+    /**
+     * Retires all the workers once the instance has been removed from the
+     * configuration. The builds they are publishing are finished first, the
+     * rest stays in the journal.
+     */
+    /*package*/ synchronized void stop() {
+        if (publisherThreads != null) {
+            for (PublisherThread thread : publisherThreads) {
+                thread.retire();
+            }
+        }
+        publisherThreads = Collections.emptyList();
+        notifyAll();
     }
 
     HttpClient getHttpClient() {
         return client;
     }
 
-    synchronized void removeRequest(AbstractBuild request, StatusInfo statusInfo) {
-        if (publishRequestQueue.contains(request)) {
-            publishRequestQueue.remove(request);
-            saveQueue();
+    /**
+     * Creates the state for a sequence of requests done by one worker, so that
+     * the workers don't share cookies and credentials.
+     */
+    HttpState newHttpState() {
+        HttpState state = new HttpState();
+        Credentials proxyCredentials = client.getState().getProxyCredentials(AuthScope.ANY);
+        if (proxyCredentials != null) {
+            state.setProxyCredentials(AuthScope.ANY, proxyCredentials);
+        }
+        return state;
+    }
+
+    /**
+     * Gets the authenticated session, logging in if there is none yet.
+     */
+    HttpState getSession() throws ServerFailureException {
+        // one worker logs in, the others wait for the result
+        synchronized (sessionLock) {
+            if (session == null) {
+                session = HTTPBuildTransmitter.login(this);
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Discards the session the remote instance no longer accepts.
+     */
+    void invalidateSession(HttpState expired) {
+        synchronized (sessionLock) {
+            // another worker might have logged in again already
+            if (session == expired) {
+                session = null;
+            }
+        }
+    }
+
+    void removeRequest(AbstractBuild request, StatusInfo statusInfo) {
+        removeRequests(Collections.singletonList(request), statusInfo);
+    }
+
+    /**
+     * Removes the builds of one project, published together, and releases the
+     * project only once all of them are gone from the queue.
+     */
+    void removeRequests(List<AbstractBuild> requests, StatusInfo statusInfo) {
+        dequeueAll(requests, statusInfo);
+        // outside of the lock, the other workers don't wait for the disk
+        journal.sync();
+    }
+
+    private synchronized void dequeueAll(List<AbstractBuild> requests, StatusInfo statusInfo) {
+        for (AbstractBuild request : requests) {
+            dequeue(request, statusInfo);
+        }
+        releaseProject(requests.get(0));
+    }
+
+    private void dequeue(AbstractBuild request, StatusInfo statusInfo) {
+        failures.remove(request);
+        priorities.remove(request);
+        forgetUploads(request);
+        if (publishRequestQueue.remove(request)) {
+            journal.remove(request.getProject().getFullName(), request.getNumber());
             StatusAction.setBuildStatusAction(request, statusInfo);
         }
     }
     
-    synchronized void postponeRequest(AbstractBuild request) {
+    /**
+     * Records a failed attempt to publish the build reserved by the calling
+     * worker and postpones it until the next attempt, as decided by the
+     * {@link RetryPolicy}. The other builds don't have to wait for it, except
+     * for the later builds of the same project. After {@link #getMaxAttempts()}
+     * attempts the build is given up on.
+     */
+    void recordFailure(AbstractBuild request, Exception cause) {
+        failed(request, cause);
+        journal.sync();
+    }
+
+    private synchronized void failed(AbstractBuild request, Exception cause) {
+        RetryPolicy.ErrorClass errorClass = RetryPolicy.ErrorClass.of(cause);
+        if (errorClass == RetryPolicy.ErrorClass.NETWORK) {
+            circuitBreaker.failed();
+        } else if (errorClass != RetryPolicy.ErrorClass.OTHER) {
+            // it did respond
+            circuitBreaker.succeeded();
+        }
+
+        String project = request.getProject().getFullName();
+        QueueJournal.Entry state = journal.get(project, request.getNumber());
+        int attempts = (state != null ? state.attempts : 0) + 1;
+
+        if (maxAttempts > 0 && attempts >= maxAttempts) {
+            LOGGER.warning("Giving up publishing " + request + " after " + attempts + " attempts");
+            dequeueAll(Collections.singletonList(request), new StatusInfo(State.FAILURE,
+                    "Build publishing failed " + attempts + " times, giving up", name, cause));
+            return;
+        }
+
+        long delay = RetryPolicy.delay(cause, attempts);
+        long nextEligible = System.currentTimeMillis() + delay;
+        journal.retry(project, request.getNumber(), attempts, nextEligible);
+
+        HttpMethod method = null;
+        if (cause instanceof ServerFailureException) {
+            method = ((ServerFailureException) cause).getMethod();
+        }
+        failures.put(request, new ThreadState.ErrorRecoveryWait(nextEligible, request, cause, method));
+        StatusAction.setBuildStatusAction(request, new StatusInfo(State.FAILURE_PENDING,
+                "Error during build publishing (attempt " + attempts + "), next attempt in "
+                        + Util.getTimeSpanString(delay), name, cause));
+
+        requeue(request);
+    }
+
+    /**
+     * Lets the builds waiting after a failure be published right away.
+     */
+    void retryNow() {
+        retryAll();
+        journal.sync();
+    }
+
+    private synchronized void retryAll() {
+        for (AbstractBuild request : publishRequestQueue) {
+            QueueJournal.Entry state = getRetryState(request);
+            if (state != null && state.nextEligible > 0) {
+                journal.retry(state.project, state.number, state.attempts, 0);
+            }
+        }
+        failures.clear();
+        notifyAll();
+    }
+
+    /**
+     * Gets the last failures of the builds that wait for a retry.
+     */
+    public synchronized List<ThreadState.ErrorRecoveryWait> getFailures() {
+        return new ArrayList<ThreadState.ErrorRecoveryWait>(failures.values());
+    }
+
+    // bind failures to Jelly views
+    public ThreadState.ErrorRecoveryWait getFailure(int n) {
+        return getFailures().get(n);
+    }
+
+    /**
+     * Gets the number of failed attempts to publish the build and the time of the next one.
+     *
+     * @return null if the build is not queued.
+     */
+    /*package*/ QueueJournal.Entry getRetryState(AbstractBuild request) {
+        return journal.get(request.getProject().getFullName(), request.getNumber());
+    }
+
+    void postponeRequest(AbstractBuild request) {
+        requeue(request);
+        journal.sync();
+    }
+
+    private synchronized void requeue(AbstractBuild request) {
         if (publishRequestQueue.contains(request)) {
             publishRequestQueue.remove(request);
             publishRequestQueue.add(request);
         }
+        releaseProject(request);
     }
 
     /**
-     * Obtains the current queue of builds that are waiting for publication.
+     * Lets other workers publish builds of the project of the given request.
+     */
+    private void releaseProject(AbstractBuild request) {
+        projectsInProgress.remove(request.getProject().getFullName());
+        // builds queued while the project was being published
+        supersedeOlderBuilds(request.getProject());
+        notifyAll();
+    }
+
+    /**
+     * Obtains the current queue of builds that are waiting for publication,
+     * in the order they would be published one at a time, regardless of the
+     * retries.
+     *
+     * @see #pickRequest(long)
      */
     public synchronized List<AbstractBuild> getQueue() {
-        return new ArrayList<AbstractBuild>(publishRequestQueue);
+        long now = System.currentTimeMillis();
+        return QueueOrder.order(queueItems(now), now);
+    }
+
+    /**
+     * Gets the current priority of the queued build, including the time it has waited.
+     *
+     * @see PublishPriority
+     */
+    public synchronized int getPriority(AbstractBuild request) {
+        long now = System.currentTimeMillis();
+        return queueItem(request, now).getPriority(now);
+    }
+
+    private List<QueueOrder.Item<AbstractBuild>> queueItems(long now) {
+        List<QueueOrder.Item<AbstractBuild>> items = new ArrayList<QueueOrder.Item<AbstractBuild>>(
+                publishRequestQueue.size());
+        for (AbstractBuild request : publishRequestQueue) {
+            items.add(queueItem(request, now));
+        }
+        return items;
+    }
+
+    private QueueOrder.Item<AbstractBuild> queueItem(AbstractBuild request, long now) {
+        QueuedBuild queued = priorities.get(request);
+        QueueJournal.Entry state = getRetryState(request);
+        return new QueueOrder.Item<AbstractBuild>(request, request.getProject().getFullName(), request.getNumber(),
+                queued != null ? queued.priority : 0, queued != null ? queued.queuedAt : now,
+                state != null ? state.nextEligible : 0);
     }
     
     /**
-     * Gets the thread that does the publication.
+     * Gets the threads that do the publication.
      *
      * @return
-     *      Can be null during the initialization of Hudson.
+     *      Empty during the initialization of Hudson.
      */
-    public PublisherThread getPublisherThread() {
-        return publisherThread;
+    public List<PublisherThread> getPublisherThreads() {
+        List<PublisherThread> threads = publisherThreads;
+        return threads != null ? threads : Collections.<PublisherThread>emptyList();
     }
 
-    synchronized AbstractBuild nextRequest() {
+    // bind workers to Jelly views
+    public PublisherThread getWorker(int n) {
+        return getPublisherThreads().get(n);
+    }
+
+    /**
+     * Waits for a build that can be published and reserves its project for the
+     * calling worker until the request is removed or postponed. Nothing is
+     * handed out while the {@link CircuitBreaker} is open.
+     *
+     * @return null once the calling worker has been retired.
+     */
+    synchronized AbstractBuild nextRequest() throws InterruptedException {
         // If there is nothing to do let's wait until next
         // PublishRequest
-        waitForRequest();
-        return publishRequestQueue.iterator().next();
+        AbstractBuild request;
+        while (circuitBreaker.isOpen() || (request = pickRequest(System.currentTimeMillis())) == null) {
+            if (isRetired()) {
+                return null;
+            }
+            // closing the breaker notifies as well
+            long nextRetry = circuitBreaker.isOpen() ? 0 : nextRetry(System.currentTimeMillis());
+            // 0 waits for a notification only
+            wait(nextRetry == 0 ? 0 : Math.max(1, nextRetry - System.currentTimeMillis()));
+        }
+        if (isRetired()) {
+            return null;
+        }
+        projectsInProgress.add(request.getProject().getFullName());
+        return request;
+    }
+
+    private static boolean isRetired() {
+        Thread current = Thread.currentThread();
+        return current instanceof PublisherThread && ((PublisherThread) current).isRetired();
     }
 
-    private void waitForRequest() {
-        while (publishRequestQueue.isEmpty()) {
+    /**
+     * Gathers the other queued builds of the project of the request reserved by
+     * the calling worker, so that they can be sent together with it. Waits up
+     * to {@link #getBatchWindow()} seconds for more builds to arrive if the
+     * batch is not full.
+     *
+     * @return
+     *      The request and the later builds of its project, at most {@link #getBatchSize()}
+     *      of them, in the order of their numbers. The builds from the first
+     *      one that waits for a retry on are left out.
+     */
+    synchronized List<AbstractBuild> collectBatch(AbstractBuild request) {
+        long deadline = System.currentTimeMillis() + getBatchWindow() * 1000L;
+        while (true) {
+            long now = System.currentTimeMillis();
+            List<AbstractBuild> batch = QueueOrder.batch(queueItem(request, now), queueItems(now), getBatchSize(), now);
+            long remaining = deadline - now;
+            if (batch.size() >= getBatchSize() || remaining <= 0) {
+                return batch;
+            }
             try {
-                wait();
+                wait(remaining);
             } catch (InterruptedException e) {
-                e.printStackTrace();
-                return;
+                return batch;
             }
         }
     }
 
     /**
-     * Serializes the queue into $HUDSON_HOME
+     * Finds the build with the highest priority in the queue whose project is
+     * not being published by another worker and which is not waiting for a
+     * retry.
+     *
+     * @see QueueOrder#pick(java.util.Collection, Set, long)
      */
-    private void saveQueue() {
-        List<RequestHolder> holders = new LinkedList<RequestHolder>();
+    private AbstractBuild pickRequest(long now) {
+        return QueueOrder.pick(queueItems(now), projectsInProgress, now);
+    }
+
+    /**
+     * @return
+     *      The time of the closest retry of a build, 0 if no build waits for one.
+     */
+    private long nextRetry(long now) {
+        long next = 0;
         for (AbstractBuild request : publishRequestQueue) {
-            int n = request.getNumber();
-            AbstractProject p = request.getProject();
-            RequestHolder holder = new RequestHolder(n,p.getFullName());
-            holders.add(holder);
-        }
-        XmlFile file = new XmlFile(new File(Hudson.getInstance().getRootDir(),
-                "bp-" + name + ".xml"));
-        try {
-            file.write(holders);
-        } catch (IOException e) {
-            e.printStackTrace();
-            LOGGER.severe(e.getMessage());
+            QueueJournal.Entry state = getRetryState(request);
+            if (state != null && state.nextEligible > now && (next == 0 || state.nextEligible < next)) {
+                next = state.nextEligible;
+            }
         }
+        return next;
     }
 
+    /**
+     * Serializes the queue into $HUDSON_HOME
+     */
     private void restoreQueue() {
+        if (journal.exists()) {
+            try {
+                for (QueueJournal.Entry entry : journal.replay()) {
+                    AbstractBuild build = findBuild(entry.project, entry.number);
+                    if (build != null) {
+                        enqueue(build, queued(build));
+                    } else {
+                        journal.remove(entry.project, entry.number);
+                    }
+                }
+                // the option may have been turned on meanwhile
+                synchronized (this) {
+                    for (AbstractBuild build : getQueue()) {
+                        supersedeOlderBuilds(build.getProject());
+                    }
+                }
+                journal.sync();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE,"Could not restore publisher queue from "
+                        + journal.getFile().getAbsolutePath(),e);
+            }
+            return;
+        }
+
+        // queue saved by older versions as a whole
         XmlFile file = new XmlFile(new File(Hudson.getInstance().getRootDir(),
                 "bp-" + name + ".xml"));
         if(!file.exists())
@@ -252,24 +1191,46 @@ public final class HudsonInstance {
         try {
             List<RequestHolder> holders = (List<RequestHolder>) file.read();
             for (RequestHolder holder : holders) {
-                String projectName = holder.project;
-                Item project = Hudson.getInstance().getItemByFullName(
-                        projectName);
-                if (project instanceof AbstractProject) {
-                    Run build = ((AbstractProject) project)
-                            .getBuildByNumber(holder.build);
-                    if (build != null) {
-                        publishRequestQueue.add((AbstractBuild) build);
-                    }
+                AbstractBuild build = findBuild(holder.project, holder.build);
+                if (build != null) {
+                    enqueue(build, queued(build));
+                    journal.add(holder.project, holder.build);
                 }
             }
-
+            journal.compact();
+            file.getFile().delete();
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE,"Could not restore publisher queue from "
                     + file.getFile().getAbsolutePath(),e);
         }
     }
 
+    private static AbstractBuild findBuild(String projectName, int number) {
+        Item project = Hudson.getInstance().getItemByFullName(projectName);
+        if (project instanceof AbstractProject) {
+            return (AbstractBuild) ((AbstractProject) project).getBuildByNumber(number);
+        }
+        return null;
+    }
+
+    /**
+     * Priority of a queued build.
+     */
+    private static final class QueuedBuild {
+        final int priority;
+        /**
+         * Whether the build supersedes the older queued builds of its project.
+         */
+        final boolean latestOnly;
+        final long queuedAt;
+
+        QueuedBuild(int priority, boolean latestOnly, long queuedAt) {
+            this.priority = priority;
+            this.latestOnly = latestOnly;
+            this.queuedAt = queuedAt;
+        }
+    }
+
     private static class RequestHolder {
         int build;
         String project;
@@ -279,4 +1240,40 @@ public final class HudsonInstance {
             this.project = project;
         }
     }
+
+    /**
+     * Switches the upload limits of all the instances as the day goes.
+     */
+    @Extension
+    public static class BandwidthScheduler extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(1);
+        }
+
+        @Override
+        protected void doRun() {
+            for (HudsonInstance instance : BuildPublisher.DESCRIPTOR.getPublicInstances()) {
+                instance.updateBandwidth();
+            }
+        }
+    }
+
+    /**
+     * Evicts the idle connections of all the instances.
+     */
+    @Extension
+    public static class IdleConnectionEvictor extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.SECONDS.toMillis(30);
+        }
+
+        @Override
+        protected void doRun() {
+            for (HudsonInstance instance : BuildPublisher.DESCRIPTOR.getPublicInstances()) {
+                instance.closeIdleConnections();
+            }
+        }
+    }
 }
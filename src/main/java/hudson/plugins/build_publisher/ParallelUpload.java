@@ -0,0 +1,217 @@
+package hudson.plugins.build_publisher;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.IOException2;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Stream that cuts an archive staged on the remote instance into chunks and
+ * uploads them over several connections at once, as a single connection
+ * doesn't get far over a link with a high latency. The receiving side puts
+ * the chunks together by their offsets.
+ *
+ * <p>
+ * At most {@link HudsonInstance#getUploadConnections()} chunks are being
+ * uploaded at a time, the writer waits for one of them to finish before
+ * it can fill the next one. So the stream holds up to one chunk more than
+ * there are connections in memory.
+ *
+ * @see StagedUpload
+ */
+/*package*/ final class ParallelUpload extends OutputStream {
+
+    /**
+     * Uploads a chunk.
+     */
+    interface ChunkSender {
+        void send(long offset, byte[] data, int length) throws IOException;
+    }
+
+    private final ChunkSender sender;
+    private final int chunkSize;
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final List<Future<?>> chunks = new ArrayList<Future<?>>();
+
+    private byte[] chunk;
+    private int count;
+    private long offset;
+
+    /**
+     * @param offset
+     *      Where the first chunk starts in the archive.
+     * @param chunkSize
+     *      In bytes.
+     */
+    ParallelUpload(ChunkSender sender, long offset, int chunkSize, int connections, String name) {
+        this.sender = sender;
+        this.offset = offset;
+        this.chunkSize = chunkSize;
+        this.executor = Executors.newFixedThreadPool(connections,
+                new NamingThreadFactory(new DaemonThreadFactory(), name));
+        this.slots = new Semaphore(connections);
+    }
+
+    /**
+     * Uploads to the remote instance.
+     *
+     * @param url
+     *      Upload URL with the id of the upload, without the offset.
+     * @param offset
+     *      Where the first chunk starts in the archive.
+     */
+    static ParallelUpload to(final String url, long offset, final HudsonInstance instance) {
+        return new ParallelUpload(new ChunkSender() {
+            public void send(long at, byte[] data, int length) throws IOException {
+                PostMethod method = new PostMethod(url + "&offset=" + at);
+                method.setRequestEntity(new ChunkRequestEntity(data, length, instance));
+                HTTPBuildTransmitter.executeMethod(method, instance);
+            }
+        }, offset, instance.getChunkSize() * 1024 * 1024, instance.getUploadConnections(),
+                "Build publisher upload to " + instance.getName());
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (chunk == null) {
+                chunk = new byte[chunkSize];
+            }
+            int n = Math.min(len, chunkSize - count);
+            System.arraycopy(b, off, chunk, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == chunkSize) {
+                send();
+            }
+        }
+    }
+
+    private void send() throws IOException {
+        // no point in producing more if a chunk failed already
+        for (Iterator<Future<?>> it = chunks.iterator(); it.hasNext();) {
+            Future<?> f = it.next();
+            if (f.isDone()) {
+                get(f);
+                it.remove();
+            }
+        }
+
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an upload to finish");
+        }
+        final byte[] data = chunk;
+        final int length = count;
+        final long at = offset;
+        chunk = null;
+        count = 0;
+        offset += length;
+
+        chunks.add(executor.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                try {
+                    sender.send(at, data, length);
+                    return null;
+                } finally {
+                    slots.release();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Uploads the rest and waits for all the chunks to arrive.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (count > 0) {
+                send();
+            }
+            for (Future<?> f : chunks) {
+                get(f);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Gives up the chunks that are still being uploaded.
+     */
+    void abort() {
+        for (Future<?> f : chunks) {
+            f.cancel(true);
+        }
+        executor.shutdownNow();
+    }
+
+    private static void get(Future<?> f) throws IOException {
+        try {
+            f.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException2("Failed to upload a chunk", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an upload to finish");
+        }
+    }
+
+    private static final class ChunkRequestEntity implements RequestEntity {
+        private final byte[] data;
+        private final int length;
+        private final HudsonInstance instance;
+
+        ChunkRequestEntity(byte[] data, int length, HudsonInstance instance) {
+            this.data = data;
+            this.length = length;
+            this.instance = instance;
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public void writeRequest(OutputStream out) throws IOException {
+            OutputStream throttled = instance.throttle(out);
+            throttled.write(data, 0, length);
+            throttled.flush();
+        }
+
+        public long getContentLength() {
+            return length;
+        }
+
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+    }
+}
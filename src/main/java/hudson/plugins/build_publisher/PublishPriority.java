@@ -0,0 +1,83 @@
+package hudson.plugins.build_publisher;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Decides how urgently a build gets published. Builds with a higher priority
+ * are published before the builds with a lower one, the builds of the same
+ * priority in the order they were queued.
+ *
+ * <p>
+ * The priorities given by all the implementations are added up when the build
+ * is queued. The priority of a waiting build then grows by one every
+ * {@link #AGING_INTERVAL}, so that the builds with a low priority get
+ * published in the end as well.
+ *
+ * @see HudsonInstance#getQueue()
+ */
+public abstract class PublishPriority implements ExtensionPoint {
+
+    /**
+     * Time after which the priority of a waiting build grows by one.
+     */
+    public static final long AGING_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * @return
+     *      Positive to publish the build sooner, negative to publish it later,
+     *      0 if it doesn't matter.
+     */
+    public abstract int getPriority(AbstractBuild build, HudsonInstance instance);
+
+    public static ExtensionList<PublishPriority> all() {
+        return Jenkins.getInstance().getExtensionList(PublishPriority.class);
+    }
+
+    /**
+     * Gets the priority of the build as given by all the implementations.
+     */
+    static int of(AbstractBuild build, HudsonInstance instance) {
+        int priority = 0;
+        for (PublishPriority p : all()) {
+            try {
+                priority += p.getPriority(build, instance);
+            } catch (RuntimeException e) {
+                HudsonInstance.LOGGER.log(Level.WARNING, p + " failed to prioritize " + build, e);
+            }
+        }
+        return priority;
+    }
+
+    /**
+     * Priority configured in the {@link BuildPublisher} of the job.
+     */
+    @Extension
+    public static class JobPriority extends PublishPriority {
+        @Override
+        public int getPriority(AbstractBuild build, HudsonInstance instance) {
+            BuildPublisher publisher = BuildPublisher.of(build);
+            return publisher != null ? publisher.getPriority() : 0;
+        }
+    }
+
+    /**
+     * Stable builds go before the unstable and failed ones.
+     */
+    @Extension
+    public static class ResultPriority extends PublishPriority {
+        @Override
+        public int getPriority(AbstractBuild build, HudsonInstance instance) {
+            Result result = build.getResult();
+            return result != null && result.isWorseThan(Result.SUCCESS) ? -1 : 0;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package hudson.plugins.build_publisher;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * Files of a build directory that get published, as selected by the include
+ * and exclude patterns of the job, or the default ones.
+ *
+ * <p>
+ * The files are reported while the build directory is being walked, one
+ * directory listing at a time and in the order of their names, so that
+ * builds with a lot of files don't take up memory before the first one is
+ * sent, and the archive of the same build comes out the same every time.
+ *
+ * @see BuildPublisher#getIncludes()
+ * @see BuildPublisher.BuildPublisherDescriptor#getIncludes()
+ */
+/*package*/ final class PublishedFiles {
+
+    /**
+     * Receives the published files.
+     */
+    interface Visitor {
+        /**
+         * @param path
+         *      Path relative to the directory containing the build directory, separated by <tt>/</tt>.
+         * @return false to stop the walk.
+         */
+        boolean visit(File file, String path) throws IOException;
+    }
+
+    private final File buildDir;
+    private final List<String> includes;
+    private final List<String> excludes;
+    private long skippedBytes;
+
+    /**
+     * @param includes
+     *      Comma separated Ant patterns relative to the build directory, null for all the files.
+     * @param excludes
+     *      Comma separated Ant patterns relative to the build directory, null for none.
+     */
+    PublishedFiles(File buildDir, String includes, String excludes) {
+        this.buildDir = buildDir;
+        this.includes = patterns(Util.fixEmptyAndTrim(includes) != null ? includes : "**");
+        this.excludes = patterns(Util.fixEmptyAndTrim(excludes) != null ? excludes : "");
+        // the same as a FileSet would leave out
+        this.excludes.addAll(patterns(Util.join(Arrays.asList(DirectoryScanner.getDefaultExcludes()), ",")));
+    }
+
+    static PublishedFiles of(AbstractBuild build) {
+        BuildPublisher publisher = BuildPublisher.of(build);
+        String includes = publisher != null ? Util.fixEmptyAndTrim(publisher.getIncludes()) : null;
+        String excludes = publisher != null ? Util.fixEmptyAndTrim(publisher.getExcludes()) : null;
+        if (includes == null) {
+            includes = BuildPublisher.DESCRIPTOR.getIncludes();
+        }
+        if (excludes == null) {
+            excludes = BuildPublisher.DESCRIPTOR.getExcludes();
+        }
+        return new PublishedFiles(build.getRootDir(), includes, excludes);
+    }
+
+    private static List<String> patterns(String patterns) {
+        List<String> r = new ArrayList<String>();
+        StringTokenizer tokens = new StringTokenizer(patterns, ", ");
+        while (tokens.hasMoreTokens()) {
+            String pattern = tokens.nextToken().replace('/', File.separatorChar).replace('\\', File.separatorChar);
+            if (pattern.endsWith(File.separator)) {
+                pattern += "**";
+            }
+            r.add(pattern);
+        }
+        return r;
+    }
+
+    /**
+     * Walks the build directory and reports the published files, except for
+     * <tt>build.xml</tt>, which is sent on its own.
+     */
+    void walk(Visitor visitor) throws IOException {
+        skippedBytes = 0;
+        walk(buildDir, "", new HashSet<String>(), visitor);
+    }
+
+    private boolean walk(File dir, String relative, Set<String> parents, Visitor visitor) throws IOException {
+        // symbolic links may lead back to a parent
+        String canonical = dir.getCanonicalPath();
+        if (!parents.add(canonical)) {
+            return true;
+        }
+        try {
+            String[] names = dir.list();
+            if (names == null) {
+                return true;
+            }
+            Arrays.sort(names);
+            for (String name : names) {
+                File file = new File(dir, name);
+                String path = relative + name;
+                if (file.isDirectory()) {
+                    if (!walk(file, path + File.separator, parents, visitor)) {
+                        return false;
+                    }
+                } else if (path.equals("build.xml")) {
+                    continue;
+                } else if (!isPublished(path)) {
+                    skippedBytes += file.length();
+                } else if (!visitor.visit(file, buildDir.getName() + '/' + path.replace(File.separatorChar, '/'))) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            parents.remove(canonical);
+        }
+    }
+
+    private boolean isPublished(String path) {
+        return matches(includes, path) && !matches(excludes, path);
+    }
+
+    private static boolean matches(List<String> patterns, String path) {
+        for (String pattern : patterns) {
+            if (SelectorUtils.matchPath(pattern, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the size of the files the patterns have left out in the last walk.
+     */
+    long getSkippedBytes() {
+        return skippedBytes;
+    }
+}
@@ -14,6 +14,9 @@ import hudson.model.ItemGroup;
 import hudson.model.Job;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 
 import org.apache.commons.httpclient.Header;
@@ -21,10 +24,15 @@ import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.methods.FileRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 
 /**
  * {@link Thread} responsible for reading the queue and sending builds.
+ *
+ * <p>
+ * There can be several of these per {@link HudsonInstance}, each publishing
+ * builds of a different project.
  */
 public class PublisherThread extends Thread {
     
@@ -32,16 +40,21 @@ public class PublisherThread extends Thread {
 
     private volatile ThreadState state = ThreadState.IDLE;
 
+    private volatile boolean retired;
+
     /**
      * The public Hudson that this thread is publishing to.
      */
     private final HudsonInstance hudsonInstance;
 
+    private final BuildTransmitter buildTransmitter = new HTTPBuildTransmitter();
+
     /**
      * @param hudsonInstance
+     * @param index Number of the worker, to tell the threads apart.
      */
-    PublisherThread(HudsonInstance hudsonInstance) {
-        super("Hudson - Build-Publisher Thread for "+hudsonInstance.getName());
+    PublisherThread(HudsonInstance hudsonInstance, int index) {
+        super("Hudson - Build-Publisher Thread for "+hudsonInstance.getName()+" #"+(index+1));
         this.hudsonInstance = hudsonInstance;
     }
 
@@ -50,7 +63,17 @@ public class PublisherThread extends Thread {
         try {
             while (true) {
                 state = ThreadState.IDLE;
-                currentRequest = hudsonInstance.nextRequest();
+                currentRequest = null;
+                try {
+                    currentRequest = hudsonInstance.nextRequest();
+                } catch (InterruptedException e) {
+                    // "Retry now" hit an idle worker, nothing to do
+                    continue;
+                }
+                if (currentRequest == null) {
+                    // no longer needed
+                    return;
+                }
                 AbstractProject project  = currentRequest.getProject();
                 if(project.getBuildByNumber(currentRequest.number)==null){ //was the buid deleted before publishing
                     HudsonInstance.LOGGER.info("build does not exist " + currentRequest.getProject() + " build " + currentRequest.number);
@@ -67,6 +90,7 @@ public class PublisherThread extends Thread {
                                 "Build is being transmitted", hudsonInstance
                                         .getName(), null));
                 
+                List<AbstractBuild> batch = Collections.singletonList(currentRequest);
 
                 try {
                     // Proceed transmission
@@ -76,10 +100,11 @@ public class PublisherThread extends Thread {
                     if (project instanceof MatrixConfiguration) {
                         //We can't create remote parent project here (we might collide with another MatrixRun),
                         //just check if it exists...
-                        String projectURL = publicHudsonUrl + 
-                                "job/" + 
+                        String projectJobUrl = "job/" +
                                 hudson.Util.rawEncode(((MatrixConfiguration) project).getParent().getName());
-                        if (!urlExists(projectURL)) {
+                        String projectURL = publicHudsonUrl + projectJobUrl;
+                        if (!jobExists(projectJobUrl)) {
+                            hudsonInstance.getConfigFingerprints().forget(project.getParent().getFullName());
                             //...If not, stop here
                             HudsonInstance.LOGGER.log(Level.WARNING,
                                     "Build " + currentRequest.getNumber() +
@@ -94,11 +119,14 @@ public class PublisherThread extends Thread {
                                     "The parent project doesn't exist on the remote instance." +
                                     " Please create it (e.g. by publishing parent matrix build) and try again.",
                                     hudsonInstance.getName(), null)); 
-                            
+                            // creating the configuration would fail and queue the build again
+                            continue;
                         }
                         MatrixConfiguration configuration = (MatrixConfiguration) project;
-                        String configurationUrl = projectURL+"/"+ hudson.Util.rawEncode(configuration.getName());
-                        if(!urlExists(configurationUrl)){
+                        String configurationJobUrl = projectJobUrl+"/"+ hudson.Util.rawEncode(configuration.getName());
+                        String configurationUrl = publicHudsonUrl + configurationJobUrl;
+                        if(!jobExists(configurationJobUrl)){
+                            hudsonInstance.getConfigFingerprints().forget(configuration.getFullName());
                             HudsonInstance.LOGGER.info("crateing config " + configuration.getName());
                             PostMethod method = new PostMethod(projectURL+"/" + "postBuild/createConfiguration");
                             method.addParameter("name", configuration.getName());
@@ -106,86 +134,134 @@ public class PublisherThread extends Thread {
                             Header responseHeader = method.getResponseHeader("X-configuration-created");
                             if(responseHeader==null){
                                 HudsonInstance.LOGGER.warning("Failed to create configuration " + configuration.getName() + " for project " + project.getName());
+                            } else {
+                                hudsonInstance.getRemoteJobs().created(configurationJobUrl);
                             }
                             submitConfig(configurationUrl +"/config.xml", configuration);
+                            hudsonInstance.getConfigFingerprints().save();
                         }
                     } else {
-                        synchronizeProjectSettings(publicHudsonUrl,project);
+                        try {
+                            synchronizeProjectSettings(publicHudsonUrl,project);
+                        } finally {
+                            hudsonInstance.getConfigFingerprints().save();
+                        }
                     }
                     
-                    hudsonInstance.buildTransmitter.sendBuild(currentRequest,
+                    if (hudsonInstance.getBatchSize() > 1
+                            && hudsonInstance.remoteSupports(BuildPublisherPlugin.CAPABILITY_BATCH)) {
+                        batch = collectBatch(currentRequest);
+                    }
+
+                    buildTransmitter.sendBuilds(batch,
                             hudsonInstance);
+                    hudsonInstance.getCircuitBreaker().succeeded();
                     
-                    //Publish maven module builds
-                    if(currentRequest instanceof MavenModuleSetBuild) {
-                        for(MavenBuild moduleBuild: ((MavenModuleSetBuild) currentRequest)
-                                .getModuleLastBuilds().values()) {
-                            hudsonInstance.buildTransmitter.sendBuild(moduleBuild, 
-                                    hudsonInstance);
-                        }
-                    } 
-                    //.. and all matrix runs as well
-                    else if(currentRequest instanceof MatrixBuild)  {
-                        for(MatrixRun run: ((MatrixBuild) currentRequest).getRuns()) {
-                            if(run != null) {
-                                hudsonInstance.publishNewBuild(run);
+                    for (AbstractBuild build : batch) {
+                        //Publish maven module builds
+                        if(build instanceof MavenModuleSetBuild) {
+                            for(MavenBuild moduleBuild: ((MavenModuleSetBuild) build)
+                                    .getModuleLastBuilds().values()) {
+                                buildTransmitter.sendBuild(moduleBuild, 
+                                        hudsonInstance);
+                            }
+                        } 
+                        //.. and all matrix runs as well
+                        else if(build instanceof MatrixBuild)  {
+                            for(MatrixRun run: ((MatrixBuild) build).getRuns()) {
+                                if(run != null) {
+                                    hudsonInstance.publishNewBuild(run);
+                                }
                             }
                         }
+
+                        runPostActions(build);
+                        // Notify about success
+                        HudsonInstance.LOGGER.info("Build #"
+                                + build.getNumber() + " of project "
+                                + build.getProject().getName()
+                                + " was published.");
                     }
-                    
-                    
-                 
-                    runPostActions(currentRequest);
-                    // Notify about success
-                    HudsonInstance.LOGGER.info("Build #"
-                            + currentRequest.getNumber() + " of project "
-                            + currentRequest.getProject().getName()
-                            + " was published.");
 
                     hudsonInstance
-                            .removeRequest(
-                                    currentRequest,
+                            .removeRequests(
+                                    batch,
                                     new StatusInfo(
                                             StatusInfo.State.SUCCESS,
                                             "Build transmission was successfully completed",
                                             hudsonInstance.getName(), null));                       
                    
                 } catch (Exception e) {
-                    // Something's wrong. Let's wait awhile and try again.
+                    // Something's wrong. Let's try again later, other builds go on meanwhile.
                     HudsonInstance.LOGGER.log(Level.WARNING,"Error during build transmission: "+e.getMessage(),e);
-                    StatusAction.setBuildStatusAction(currentRequest,
-                            new StatusInfo(StatusInfo.State.FAILURE_PENDING,
-                                    "Error during build publishing", hudsonInstance
-                                            .getName(), e));
-                    hudsonInstance.postponeRequest(currentRequest);
-
-                    HttpMethod httpMethod = null;
-                    if (e instanceof ServerFailureException)
-                        httpMethod = ((ServerFailureException) e).getMethod();
-                    
-                    // TODO make this configurable
-                    final long timeout = System.currentTimeMillis() + 1000*60*10;
-                    state = new ThreadState.ErrorRecoveryWait(timeout,currentRequest,e,httpMethod);
-
-                    try {
-                        while(System.currentTimeMillis() < timeout)
-                            Thread.sleep(timeout-System.currentTimeMillis());
-                    } catch (InterruptedException e1) {
-                        // note that this also happens when the administrator manually forced a retry,
-                        // ignoring timeout
-                        HudsonInstance.LOGGER.log(Level.SEVERE,"Build publisher thread was interrupted",e1);
+                    // the remote might have been replaced by a different version
+                    hudsonInstance.forgetRemoteCapabilities();
+
+                    for (AbstractBuild build : batch) {
+                        if (build != currentRequest) {
+                            // they wait for the failed one, so that the builds stay in order
+                            StatusAction.setBuildStatusAction(build,
+                                    new StatusInfo(StatusInfo.State.PENDING,
+                                            "Waiting in queue", hudsonInstance
+                                                    .getName(), null));
+                        }
                     }
+                    hudsonInstance.recordFailure(currentRequest, e);
                 }
             }
         } catch(Error e) {
             state = new ThreadState.Dead(e);
+            releaseCurrentRequest();
             throw e;
         } catch(RuntimeException e) {
             state = new ThreadState.Dead(e);
+            releaseCurrentRequest();
             throw e;
         }
     }
 
+    /**
+     * Adds the other queued builds of the project of the request to the batch,
+     * leaving out the ones that have been deleted meanwhile.
+     */
+    private List<AbstractBuild> collectBatch(AbstractBuild request) {
+        List<AbstractBuild> batch = new ArrayList<AbstractBuild>();
+        for (AbstractBuild build : hudsonInstance.collectBatch(request)) {
+            if (build == request) {
+                batch.add(build);
+            } else if (build.getProject().getBuildByNumber(build.number) != null) {
+                StatusAction.setBuildStatusAction(build,
+                        new StatusInfo(StatusInfo.State.INPROGRESS,
+                                "Build is being transmitted", hudsonInstance
+                                        .getName(), null));
+                batch.add(build);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Lets the other workers take over the build this dying thread was working on.
+     */
+    private void releaseCurrentRequest() {
+        if (currentRequest != null) {
+            hudsonInstance.postponeRequest(currentRequest);
+        }
+    }
+
+    /**
+     * Lets the worker finish the builds it is publishing and end.
+     *
+     * @see HudsonInstance#initPublisherThreads()
+     */
+    void retire() {
+        retired = true;
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
     /**
      * Gets an immutable object representing what this thread is currently doing.
      *
@@ -251,49 +327,56 @@ public class PublisherThread extends Thread {
     private void createOrSynchronize(String publicHudson,
             AbstractProject project) throws IOException, ServerFailureException {
 
-        String projectURL = publicHudson + "job/" + hudson.Util.rawEncode(project.getName());
+        String projectJobUrl = "job/" + hudson.Util.rawEncode(project.getName());
         String submitConfigUrl;
 
-        if (!urlExists(projectURL)) {
-            // if the project doesn't exist, create it
+        boolean exists = jobExists(projectJobUrl);
+        if (!exists) {
+            // if the project doesn't exist, create it, and everything in it has to be submitted again
+            hudsonInstance.getConfigFingerprints().forget(project.getFullName());
             submitConfigUrl = publicHudson + "createItem?name="
                     + hudson.Util.rawEncode(project.getName());
         } else {
             // otherwise just synchronize config file
-            submitConfigUrl = projectURL + "/config.xml";
+            submitConfigUrl = publicHudson + projectJobUrl + "/config.xml";
         }
 
         submitConfig(submitConfigUrl, project);
+        if (!exists) {
+            hudsonInstance.getRemoteJobs().created(projectJobUrl);
+        }
     }
 
+    /**
+     * Submits config.xml of the job, unless the remote instance already has
+     * this version of it.
+     */
     private void submitConfig(String submitConfigUrl, Job project)
             throws IOException, ServerFailureException {
+        ConfigFingerprints fingerprints = hudsonInstance.getConfigFingerprints();
+        String digest = ConfigFingerprints.digestOf(project);
+        if (fingerprints.isUpToDate(project, digest)) {
+            return;
+        }
         PostMethod method = new PostMethod(submitConfigUrl);
         method.setRequestEntity(new FileRequestEntity(project.getConfigFile().getFile(),"text/xml"));
         executeMethod(method);
+        fingerprints.submitted(project, digest);
     }
 
+    /**
+     * Checks that the remote instance is there and that we are allowed to talk to it.
+     */
     private void assertUrlExists(String url) throws IOException, ServerFailureException {
-        executeMethod(new PostMethod(url));
+        executeMethod(new GetMethod(url + "api/json?tree=mode"));
     }
 
-    private boolean urlExists(String url) throws ServerFailureException, IOException {
-
-        PostMethod method = new PostMethod(url);
-        try {
-            executeMethod(method);
-            return true;
-        } catch (ServerFailureException e) {
-            // check, if method was executed, see JENKINS-17944
-            if(e.getMethod().getStatusLine() == null) {
-                throw e;
-            }
-            
-            int statusCode = e.getMethod().getStatusCode();
-            if ((statusCode == 400) || (statusCode == 404))
-                return false;
-            throw e;
-        }
+    /**
+     * @param jobUrl
+     *      URL of the job relative to the remote instance.
+     */
+    private boolean jobExists(String jobUrl) throws ServerFailureException {
+        return hudsonInstance.getRemoteJobs().exists(jobUrl);
     }
 
     /* shortcut */
@@ -0,0 +1,371 @@
+package hudson.plugins.build_publisher;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import jenkins.util.Timer;
+
+/**
+ * Append-only log of the publishing queue of a {@link HudsonInstance}.
+ *
+ * <p>
+ * Every change of the queue appends one line to the journal instead of
+ * rewriting the whole queue, and the queue is restored by replaying the
+ * journal. Once the journal grows well beyond the size of the queue, it is
+ * rewritten in the background to contain just the queued builds.
+ *
+ * <p>
+ * The journal is plain text with one record per line:
+ * <pre>
+ * + NUMBER PROJECT                         queued
+ * - NUMBER PROJECT                         published or dropped
+ * r NUMBER ATTEMPTS NEXT-ELIGIBLE PROJECT  failed attempts, retry after the time given in ms
+ * </pre>
+ * followed by a space and the CRC32 of the record in hex. The project name
+ * is last as it can contain spaces. A record cut short by a crash doesn't
+ * match its checksum and is ignored.
+ *
+ * <p>
+ * The records are forced to the disk by {@link #sync()}, which the queue
+ * calls once it has let go of its lock, so that the other workers don't wait
+ * for the disk. The records appended by several threads meanwhile are forced
+ * at once.
+ */
+/*package*/ final class QueueJournal {
+
+    /**
+     * Don't bother compacting small journals.
+     */
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    /**
+     * Queued build with its retry state.
+     */
+    static final class Entry {
+        final String project;
+        final int number;
+        int attempts;
+        long nextEligible;
+
+        Entry(String project, int number) {
+            this.project = project;
+            this.number = number;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return 0 if the build can be published right away.
+         */
+        public long getNextEligible() {
+            return nextEligible;
+        }
+    }
+
+    private final File file;
+
+    /**
+     * Queued builds in the order of the queue.
+     */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    private FileOutputStream out;
+
+    /**
+     * Number of records in the journal.
+     */
+    private int records;
+
+    private boolean compactionScheduled;
+
+    /**
+     * Number of records appended, and of those known to be on the disk.
+     */
+    private long appended, synced;
+    private boolean syncing;
+
+    QueueJournal(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    boolean exists() {
+        return file.exists() || getTmpFile().exists();
+    }
+
+    /**
+     * Reads the journal and rewrites it compacted.
+     *
+     * @return the queued builds, in the order of the queue.
+     */
+    synchronized List<Entry> replay() throws IOException {
+        entries.clear();
+        if (!file.exists() && getTmpFile().exists()) {
+            // crashed between deleting the old journal and renaming the new one
+            getTmpFile().renameTo(file);
+        }
+        if (file.exists()) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    String record = unseal(line);
+                    if (record != null) {
+                        apply(record);
+                    } else {
+                        HudsonInstance.LOGGER.fine("Skipping incomplete record in " + file + ": " + line);
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        }
+        // also gets rid of a partial last record, so that nothing gets appended to it
+        compact();
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    private void apply(String line) {
+        String[] fields = line.split(" ", line.startsWith("r ") ? 5 : 3);
+        try {
+            if (fields[0].equals("+") && fields.length == 3) {
+                Entry entry = new Entry(fields[2], Integer.parseInt(fields[1]));
+                entries.put(key(entry.project, entry.number), entry);
+            } else if (fields[0].equals("-") && fields.length == 3) {
+                entries.remove(key(fields[2], Integer.parseInt(fields[1])));
+            } else if (fields[0].equals("r") && fields.length == 5) {
+                // moves the entry to the end of the queue, as the retry does
+                Entry entry = entries.remove(key(fields[4], Integer.parseInt(fields[1])));
+                if (entry != null) {
+                    entry.attempts = Integer.parseInt(fields[2]);
+                    entry.nextEligible = Long.parseLong(fields[3]);
+                    entries.put(key(entry.project, entry.number), entry);
+                }
+            } else {
+                HudsonInstance.LOGGER.fine("Skipping malformed record in " + file + ": " + line);
+            }
+        } catch (NumberFormatException e) {
+            HudsonInstance.LOGGER.fine("Skipping malformed record in " + file + ": " + line);
+        }
+    }
+
+    synchronized void add(String project, int number) {
+        String key = key(project, number);
+        if (!entries.containsKey(key)) {
+            entries.put(key, new Entry(project, number));
+            append("+ " + number + " " + project);
+        }
+    }
+
+    synchronized void remove(String project, int number) {
+        if (entries.remove(key(project, number)) != null) {
+            append("- " + number + " " + project);
+        }
+    }
+
+    /**
+     * Records the retry state of the build and moves it to the end of the queue.
+     *
+     * @param attempts
+     *      Number of failed attempts so far.
+     * @param nextEligible
+     *      Time of the next attempt, 0 for right away.
+     * @return the updated entry, null if the build is not queued.
+     */
+    synchronized Entry retry(String project, int number, int attempts, long nextEligible) {
+        Entry entry = entries.remove(key(project, number));
+        if (entry == null) {
+            return null;
+        }
+        entry.attempts = attempts;
+        entry.nextEligible = nextEligible;
+        entries.put(key(project, number), entry);
+        append("r " + number + " " + entry.attempts + " " + nextEligible + " " + project);
+        return entry;
+    }
+
+    /**
+     * @return null if the build is not queued.
+     */
+    synchronized Entry get(String project, int number) {
+        return entries.get(key(project, number));
+    }
+
+    private void append(String record) {
+        try {
+            if (out == null) {
+                out = new FileOutputStream(file, true);
+            }
+            out.write(seal(record).getBytes("UTF-8"));
+            appended++;
+        } catch (IOException e) {
+            HudsonInstance.LOGGER.log(Level.SEVERE, "Could not write publisher queue to "
+                    + file.getAbsolutePath(), e);
+            closeQuietly();
+        }
+
+        records++;
+        if (records > COMPACTION_THRESHOLD && records > 2 * entries.size() && !compactionScheduled) {
+            compactionScheduled = true;
+            Timer.get().submit(new Runnable() {
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        HudsonInstance.LOGGER.log(Level.WARNING, "Could not compact publisher queue "
+                                + file.getAbsolutePath(), e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Forces the records appended so far to the disk.
+     */
+    void sync() {
+        FileOutputStream stream;
+        long target;
+        synchronized (this) {
+            target = appended;
+            // the one being forced may cover ours already
+            while (syncing && synced < target) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (synced >= target) {
+                return;
+            }
+            syncing = true;
+            target = appended;
+            stream = out;
+        }
+
+        IOException failure = null;
+        try {
+            if (stream != null) {
+                stream.getFD().sync();
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            synchronized (this) {
+                // compacted meanwhile otherwise, the new journal has been forced as a whole
+                if (failure != null && stream == out) {
+                    HudsonInstance.LOGGER.log(Level.SEVERE, "Could not write publisher queue to "
+                            + file.getAbsolutePath(), failure);
+                }
+                syncing = false;
+                synced = Math.max(synced, target);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal to contain just the queued builds.
+     */
+    synchronized void compact() throws IOException {
+        compactionScheduled = false;
+        closeQuietly();
+
+        File tmp = getTmpFile();
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            Writer w = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+            for (Entry entry : entries.values()) {
+                w.write(seal("+ " + entry.number + " " + entry.project));
+                if (entry.attempts > 0) {
+                    w.write(seal("r " + entry.number + " " + entry.attempts + " " + entry.nextEligible
+                            + " " + entry.project));
+                }
+            }
+            w.flush();
+            // the old journal goes away next, make sure the new one is really there
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            // Windows doesn't replace existing files
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to replace " + file + " with " + tmp);
+            }
+        }
+        records = entries.size();
+        synced = appended;
+    }
+
+    private void closeQuietly() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // nothing more to lose
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Adds the checksum and the line end to the record.
+     */
+    private static String seal(String record) {
+        return record + " " + checksum(record) + "\n";
+    }
+
+    /**
+     * @return the record without the checksum, null if it doesn't match.
+     */
+    private static String unseal(String line) {
+        int space = line.lastIndexOf(' ');
+        if (space < 0) {
+            return null;
+        }
+        String record = line.substring(0, space);
+        return line.substring(space + 1).equals(checksum(record)) ? record : null;
+    }
+
+    private static String checksum(String record) {
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(record.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    private File getTmpFile() {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private static String key(String project, int number) {
+        return number + " " + project;
+    }
+}
@@ -0,0 +1,178 @@
+package hudson.plugins.build_publisher;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Order in which the queued builds of a {@link HudsonInstance} get published.
+ *
+ * <p>
+ * The builds of a project are published in the order of their numbers, so a
+ * project is as urgent as its most urgent build, see {@link PublishPriority}.
+ * Of the projects with the same priority, the one queued first goes first.
+ */
+/*package*/ final class QueueOrder {
+
+    /**
+     * Queued build with what decides its turn.
+     *
+     * @param <T>
+     *      The queued build.
+     */
+    static final class Item<T> {
+        final T request;
+        final String project;
+        final int number;
+        final int priority;
+        final long queuedAt;
+        /**
+         * Time of the next attempt, 0 for right away.
+         */
+        final long nextEligible;
+
+        Item(T request, String project, int number, int priority, long queuedAt, long nextEligible) {
+            this.request = request;
+            this.project = project;
+            this.number = number;
+            this.priority = priority;
+            this.queuedAt = queuedAt;
+            this.nextEligible = nextEligible;
+        }
+
+        /**
+         * Gets the priority including the time the build has waited.
+         */
+        int getPriority(long now) {
+            return priority + (int) ((now - queuedAt) / PublishPriority.AGING_INTERVAL);
+        }
+
+        boolean isEligible(long now) {
+            return nextEligible <= now;
+        }
+    }
+
+    private QueueOrder() {
+    }
+
+    /**
+     * Lists the builds in the order they would be published one at a time,
+     * regardless of the retries.
+     *
+     * @param queue
+     *      Builds in the order they were queued.
+     */
+    static <T> List<T> order(Collection<Item<T>> queue, long now) {
+        Map<String, List<Item<T>>> projects = byProject(queue);
+        List<T> order = new ArrayList<T>(queue.size());
+        while (!projects.isEmpty()) {
+            List<Item<T>> next = null;
+            int nextPriority = 0;
+            for (List<Item<T>> builds : projects.values()) {
+                int priority = getPriority(builds, now);
+                if (next == null || priority > nextPriority) {
+                    next = builds;
+                    nextPriority = priority;
+                }
+            }
+            order.add(next.remove(0).request);
+            if (next.isEmpty()) {
+                projects.values().remove(next);
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Finds the build to publish next: the oldest build of the most urgent
+     * project that is not being published by another worker, unless that
+     * build waits for a retry.
+     *
+     * @param busy
+     *      Projects being published.
+     * @return null if there is none.
+     */
+    static <T> T pick(Collection<Item<T>> queue, Set<String> busy, long now) {
+        Item<T> best = null;
+        int bestPriority = 0;
+        for (Map.Entry<String, List<Item<T>>> e : byProject(queue).entrySet()) {
+            Item<T> oldest = e.getValue().get(0);
+            if (!busy.contains(e.getKey()) && oldest.isEligible(now)) {
+                int priority = getPriority(e.getValue(), now);
+                if (best == null || priority > bestPriority) {
+                    best = oldest;
+                    bestPriority = priority;
+                }
+            }
+        }
+        return best != null ? best.request : null;
+    }
+
+    /**
+     * Gathers the later builds of the project of the request to be sent along
+     * with it, up to the first one that waits for a retry, as the builds
+     * behind it must not overtake it.
+     *
+     * @param size
+     *      Largest number of builds in the batch.
+     * @return the request and the builds to go with it, in the order of their numbers.
+     */
+    static <T> List<T> batch(Item<T> request, Collection<Item<T>> queue, int size, long now) {
+        List<Item<T>> later = new ArrayList<Item<T>>();
+        for (Item<T> item : queue) {
+            if (item.project.equals(request.project) && item.number > request.number) {
+                later.add(item);
+            }
+        }
+        Collections.sort(later, BY_NUMBER);
+
+        List<T> batch = new ArrayList<T>();
+        batch.add(request.request);
+        for (Item<T> item : later) {
+            if (batch.size() >= size || !item.isEligible(now)) {
+                break;
+            }
+            batch.add(item.request);
+        }
+        return batch;
+    }
+
+    /**
+     * Groups the builds by project, the projects in the order they were first
+     * queued, the builds of each in the order of their numbers.
+     */
+    private static <T> Map<String, List<Item<T>>> byProject(Collection<Item<T>> queue) {
+        Map<String, List<Item<T>>> projects = new LinkedHashMap<String, List<Item<T>>>();
+        for (Item<T> item : queue) {
+            List<Item<T>> builds = projects.get(item.project);
+            if (builds == null) {
+                builds = new ArrayList<Item<T>>();
+                projects.put(item.project, builds);
+            }
+            builds.add(item);
+        }
+        for (List<Item<T>> builds : projects.values()) {
+            Collections.sort(builds, BY_NUMBER);
+        }
+        return projects;
+    }
+
+    private static int getPriority(List<? extends Item<?>> builds, long now) {
+        int max = Integer.MIN_VALUE;
+        for (Item<?> build : builds) {
+            max = Math.max(max, build.getPriority(now));
+        }
+        return max;
+    }
+
+    private static final Comparator<Item<?>> BY_NUMBER = new Comparator<Item<?>>() {
+        public int compare(Item<?> i1, Item<?> i2) {
+            return i1.number - i2.number;
+        }
+    };
+}
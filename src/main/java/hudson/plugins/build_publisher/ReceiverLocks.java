@@ -0,0 +1,99 @@
+package hudson.plugins.build_publisher;
+
+import hudson.model.AbstractProject;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coordinates the requests that change a job on the receiving side.
+ *
+ * <p>
+ * The requests that extract builds into a job, or reload it, take the lock of
+ * the job, so that they don't interleave when several senders, or several
+ * workers of one sender, push to the same job. The locks are striped by the
+ * name of the top level job, which the Maven modules and matrix configurations
+ * share with their parent. Requests for other jobs go on in parallel, unless
+ * they happen to hash to the same stripe.
+ *
+ * <p>
+ * Extracting builds takes a slot besides, at most
+ * {@link BuildPublisher.BuildPublisherDescriptor#getMaxIncoming()} of them
+ * at a time, to spare the disk. Archives staged by {@link StagedUpload} only
+ * take it once they have arrived, but those sent along with the request are
+ * extracted as they come in, so they hold the slot, like the lock of the job,
+ * while the request is being transferred.
+ *
+ * @see ExternalProjectProperty
+ */
+/*package*/ final class ReceiverLocks {
+
+    private static final int STRIPES = 64;
+
+    private static final Lock[] LOCKS = new Lock[STRIPES];
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    private static final Object SLOTS = new Object();
+    private static int busySlots;
+
+    private ReceiverLocks() {
+    }
+
+    /**
+     * Waits for the lock of the job and takes it.
+     *
+     * @return the lock to release.
+     */
+    static Lock lock(AbstractProject<?, ?> project) throws InterruptedIOException {
+        String name = project.getRootProject().getFullName();
+        Lock lock = LOCKS[(name.hashCode() & Integer.MAX_VALUE) % STRIPES];
+        try {
+            lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + name);
+        }
+        return lock;
+    }
+
+    /**
+     * Waits until fewer builds are being extracted than the limit allows.
+     * Has to be paired with {@link #releaseSlot()}.
+     */
+    static void acquireSlot() throws InterruptedIOException {
+        synchronized (SLOTS) {
+            // the limit may change while waiting
+            int limit;
+            while ((limit = BuildPublisher.DESCRIPTOR.getMaxIncoming()) > 0 && busySlots >= limit) {
+                try {
+                    SLOTS.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the other builds to be received");
+                }
+            }
+            busySlots++;
+        }
+    }
+
+    static void releaseSlot() {
+        synchronized (SLOTS) {
+            busySlots--;
+            SLOTS.notifyAll();
+        }
+    }
+
+    /**
+     * Lets the waiting requests check the limit again.
+     */
+    static void limitChanged() {
+        synchronized (SLOTS) {
+            SLOTS.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package hudson.plugins.build_publisher;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+
+/**
+ * Jobs known to exist on a {@link HudsonInstance}, so that they don't have to
+ * be looked up before every publishing.
+ *
+ * <p>
+ * The jobs are identified by their URL relative to the root of the remote
+ * instance, such as <tt>job/NAME</tt> or <tt>job/NAME/CONFIGURATION</tt>. The
+ * cache is filled by one request listing all the jobs (and matrix
+ * configurations) of the remote instance; the jobs it doesn't know about are
+ * looked up one by one. Jobs are only trusted for {@link #TTL}, as they can be
+ * deleted on the remote side anytime.
+ */
+/*package*/ final class RemoteJobs {
+
+    /**
+     * How long an existing job is trusted to stay there.
+     */
+    static final long TTL = TimeUnit.MINUTES.toMillis(10);
+
+    private final HudsonInstance hudsonInstance;
+
+    /**
+     * Relative URL of the job to the time the entry expires.
+     */
+    private final Map<String, Long> jobs = new HashMap<String, Long>();
+
+    /**
+     * When the whole list of jobs should be read again.
+     */
+    private long nextListing;
+
+    RemoteJobs(HudsonInstance hudsonInstance) {
+        this.hudsonInstance = hudsonInstance;
+    }
+
+    /**
+     * Checks if the job exists on the remote instance.
+     *
+     * @param jobUrl
+     *      URL relative to the root of the remote instance, without the trailing slash.
+     */
+    boolean exists(String jobUrl) throws ServerFailureException {
+        if (isKnown(jobUrl)) {
+            return true;
+        }
+        if (list() && isKnown(jobUrl)) {
+            return true;
+        }
+
+        // not in the listing, or it has been created meanwhile
+        try {
+            HTTPBuildTransmitter.executeMethod(
+                    new GetMethod(hudsonInstance.getUrl() + jobUrl + "/api/json?tree=name"), hudsonInstance);
+        } catch (ServerFailureException e) {
+            // check, if method was executed, see JENKINS-17944
+            if (e.getMethod().getStatusLine() == null) {
+                throw e;
+            }
+            int statusCode = e.getMethod().getStatusCode();
+            if (statusCode == 400 || statusCode == 404) {
+                return false;
+            }
+            throw e;
+        }
+        created(jobUrl);
+        return true;
+    }
+
+    /**
+     * Records the job that has just been created on the remote instance.
+     */
+    synchronized void created(String jobUrl) {
+        jobs.put(jobUrl, System.currentTimeMillis() + TTL);
+    }
+
+    /**
+     * Forgets the job, and everything in it, that turned out not to exist anymore.
+     */
+    synchronized void forget(String jobUrl) {
+        for (Iterator<String> it = jobs.keySet().iterator(); it.hasNext();) {
+            String url = it.next();
+            if (url.equals(jobUrl) || url.startsWith(jobUrl + "/")) {
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized boolean isKnown(String jobUrl) {
+        Long expires = jobs.get(jobUrl);
+        if (expires == null) {
+            return false;
+        }
+        if (expires < System.currentTimeMillis()) {
+            jobs.remove(jobUrl);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the list of all the jobs, unless that has been done recently.
+     *
+     * @return true if the list has been read.
+     */
+    private boolean list() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now < nextListing) {
+                return false;
+            }
+            // one worker reads the list, the others look their jobs up meanwhile
+            nextListing = now + TTL;
+        }
+
+        try {
+            String response = HTTPBuildTransmitter.executeMethodForResponse(new GetMethod(
+                    hudsonInstance.getUrl() + "api/json?tree=jobs[name,activeConfigurations[name]]"), hudsonInstance);
+            Map<String, Long> listed = parse(JSONObject.fromObject(response), System.currentTimeMillis() + TTL);
+            synchronized (this) {
+                jobs.putAll(listed);
+            }
+            return true;
+        } catch (ServerFailureException e) {
+            HudsonInstance.LOGGER.log(Level.FINE, "Failed to list the jobs of " + hudsonInstance.getUrl(), e);
+        } catch (JSONException e) {
+            HudsonInstance.LOGGER.log(Level.FINE, "Failed to list the jobs of " + hudsonInstance.getUrl(), e);
+        }
+        return false;
+    }
+
+    /**
+     * Reads the jobs out of the remote API response.
+     */
+    static Map<String, Long> parse(JSONObject root, long expires) {
+        Map<String, Long> listed = new HashMap<String, Long>();
+        JSONArray jobs = root.optJSONArray("jobs");
+        if (jobs == null) {
+            return listed;
+        }
+        for (Object o : jobs) {
+            JSONObject job = (JSONObject) o;
+            String jobUrl = "job/" + hudson.Util.rawEncode(job.getString("name"));
+            listed.put(jobUrl, expires);
+
+            JSONArray configurations = job.optJSONArray("activeConfigurations");
+            if (configurations != null) {
+                for (Object c : configurations) {
+                    listed.put(jobUrl + "/" + hudson.Util.rawEncode(((JSONObject) c).getString("name")), expires);
+                }
+            }
+        }
+        return listed;
+    }
+}
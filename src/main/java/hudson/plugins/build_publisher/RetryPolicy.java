@@ -0,0 +1,127 @@
+package hudson.plugins.build_publisher;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * Decides when to try again to publish a build that failed.
+ *
+ * <p>
+ * The delay doubles with every failed attempt, starting and ending at limits
+ * that depend on the kind of the failure, and a random part of it is left out
+ * so that the builds that failed together don't all come back at once.
+ */
+/*package*/ final class RetryPolicy {
+
+    enum ErrorClass {
+        /**
+         * The remote instance couldn't be reached, or didn't accept the
+         * connection in time.
+         */
+        NETWORK(TimeUnit.SECONDS.toMillis(30), TimeUnit.MINUTES.toMillis(30)),
+        /**
+         * The remote instance refused the request, that's unlikely to change soon.
+         */
+        CLIENT(TimeUnit.MINUTES.toMillis(5), TimeUnit.HOURS.toMillis(6)),
+        /**
+         * The remote instance failed to process the request, or didn't answer
+         * it in time.
+         */
+        SERVER(TimeUnit.MINUTES.toMillis(1), TimeUnit.HOURS.toMillis(1)),
+        /**
+         * Anything else without a response, such as a file that changed while
+         * the build was being packed, or a connection that broke off.
+         */
+        OTHER(TimeUnit.MINUTES.toMillis(1), TimeUnit.HOURS.toMillis(1));
+
+        final long initialDelay;
+        final long maxDelay;
+
+        ErrorClass(long initialDelay, long maxDelay) {
+            this.initialDelay = initialDelay;
+            this.maxDelay = maxDelay;
+        }
+
+        static ErrorClass of(Throwable cause) {
+            HttpMethod method = respondedMethod(cause);
+            if (method == null) {
+                if (isUnreachable(cause)) {
+                    return NETWORK;
+                }
+                // connected, but the response didn't come
+                return has(cause, SocketTimeoutException.class) ? SERVER : OTHER;
+            }
+            int status = method.getStatusCode();
+            // a conflicting staged upload is thrown away, the next attempt starts over
+            if (status >= 400 && status < 500 && status != 409) {
+                return CLIENT;
+            }
+            // including the responses that didn't confirm the build
+            return SERVER;
+        }
+
+        /**
+         * Finds the request the failure comes from that did get a response,
+         * which may be wrapped by the failure of a later request.
+         */
+        private static HttpMethod respondedMethod(Throwable cause) {
+            for (int depth = 0; cause != null && depth < 20; depth++, cause = cause.getCause()) {
+                if (cause instanceof ServerFailureException) {
+                    HttpMethod method = ((ServerFailureException) cause).getMethod();
+                    if (method != null && method.getStatusLine() != null) {
+                        return method;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static boolean isUnreachable(Throwable cause) {
+            return has(cause, ConnectException.class) || has(cause, UnknownHostException.class)
+                    || has(cause, NoRouteToHostException.class) || has(cause, ConnectTimeoutException.class);
+        }
+
+        private static boolean has(Throwable cause, Class<? extends Throwable> type) {
+            // the chain may loop back
+            for (int depth = 0; cause != null && depth < 20; depth++, cause = cause.getCause()) {
+                if (type.isInstance(cause)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final Random RANDOM = new Random();
+
+    private RetryPolicy() {
+    }
+
+    /**
+     * Gets the time to wait before the next attempt.
+     *
+     * @param attempts
+     *      Number of failed attempts so far, at least 1.
+     */
+    static long delay(Throwable cause, int attempts) {
+        return delay(ErrorClass.of(cause), attempts, RANDOM);
+    }
+
+    static long delay(ErrorClass errorClass, int attempts, Random random) {
+        long delay = errorClass.maxDelay;
+        int doublings = attempts - 1;
+        if (doublings < 31) {
+            delay = Math.min(delay, errorClass.initialDelay << doublings);
+        }
+        // somewhere between the half and the full delay
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+}
@@ -0,0 +1,420 @@
+package hudson.plugins.build_publisher;
+
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractProject;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+
+/**
+ * Incoming builds, extracted into a staging directory next to the builds
+ * directory of the job and moved into the builds directory only once they
+ * have arrived completely.
+ *
+ * <p>
+ * Jenkins never sees a build that is only half there this way, and a
+ * transfer that breaks off leaves nothing behind but the staging directory,
+ * <tt>builds.bp-staging</tt> for the default location of the builds. What is
+ * left of it when Jenkins goes down is removed on the next start.
+ *
+ * <p>
+ * The files are flushed to the disk before the builds are moved, each build
+ * directory is then moved by a single rename. A build that is received again
+ * keeps the files the sender has left out as the receiver had them already,
+ * they are linked, or copied, from the old version of the build, which stays
+ * as it is until the new one is complete. The old version is moved aside
+ * just before the new one takes its place, and moved back if that fails,
+ * or on the next start if Jenkins goes down in between.
+ *
+ * @see ExternalProjectProperty#doAcceptBuild
+ */
+public final class StagedBuilds {
+
+    private static final Logger LOGGER = Logger.getLogger(StagedBuilds.class.getName());
+
+    private static final String SUFFIX = ".bp-staging";
+
+    /**
+     * Files the senders were told not to send because the {@link BlobStore}
+     * has them, by the build directory they belong to. They are linked into
+     * the builds once the builds arrive.
+     */
+    private static final Map<File, FromStore> FROM_STORE = new HashMap<File, FromStore>();
+
+    private static final class FromStore {
+        final long since = System.currentTimeMillis();
+        final List<BuildManifest.Entry> entries = new ArrayList<BuildManifest.Entry>();
+    }
+
+    /**
+     * Builds that don't arrive within this time after the manifest was checked
+     * are likely not to arrive at all.
+     */
+    private static final long FROM_STORE_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    private final File buildsDir;
+    private final File dir;
+    private final Set<String> buildDirs = new LinkedHashSet<String>();
+
+    StagedBuilds(File buildsDir) throws IOException {
+        this.buildsDir = buildsDir;
+        File root = getRoot(buildsDir);
+        root.mkdirs();
+        // several transfers to the same job may be going on
+        dir = File.createTempFile("incoming", "", root);
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Failed to create " + dir);
+        }
+    }
+
+    private static File getRoot(File buildsDir) {
+        return new File(buildsDir.getParentFile(), buildsDir.getName() + SUFFIX);
+    }
+
+    private File getStaged() {
+        return new File(dir, "builds");
+    }
+
+    private static File getReplaced(File dir) {
+        return new File(dir, "replaced");
+    }
+
+    /**
+     * Records the files of the builds the sender won't send as the store has them.
+     *
+     * @see BuildManifest#missingIn(File, BlobStore, List)
+     */
+    static void expectFromStore(File buildsDir, List<BuildManifest.Entry> entries) {
+        synchronized (FROM_STORE) {
+            long threshold = System.currentTimeMillis() - FROM_STORE_MAX_AGE;
+            for (Iterator<FromStore> it = FROM_STORE.values().iterator(); it.hasNext();) {
+                if (it.next().since < threshold) {
+                    it.remove();
+                }
+            }
+
+            // a newer check of the same build replaces the older one
+            Map<File, FromStore> checked = new HashMap<File, FromStore>();
+            for (BuildManifest.Entry e : entries) {
+                File buildDir = new File(buildsDir, buildDirOf(e.path));
+                FromStore fromStore = checked.get(buildDir);
+                if (fromStore == null) {
+                    fromStore = new FromStore();
+                    checked.put(buildDir, fromStore);
+                }
+                fromStore.entries.add(e);
+            }
+            FROM_STORE.putAll(checked);
+        }
+    }
+
+    private static List<BuildManifest.Entry> takeFromStore(File buildDir) {
+        synchronized (FROM_STORE) {
+            FromStore fromStore = FROM_STORE.remove(buildDir);
+            return fromStore != null ? fromStore.entries : Collections.<BuildManifest.Entry>emptyList();
+        }
+    }
+
+    private static String buildDirOf(String path) {
+        int slash = path.indexOf('/');
+        return slash < 0 ? path : path.substring(0, slash);
+    }
+
+    /**
+     * Extracts the incoming tar stream into the staging directory.
+     *
+     * @param blobs
+     *      If not null, the received files are deduplicated through the store.
+     */
+    void extract(InputStream in, BlobStore blobs) throws IOException {
+        File staged = getStaged();
+        EndAwareInputStream end = new EndAwareInputStream(in);
+        TarInputStream tar = new TarInputStream(end);
+        ReadableByteChannel source = Channels.newChannel(tar);
+        TarEntry entry;
+        while ((entry = tar.getNextEntry()) != null) {
+            String name = entry.getName();
+            if (!BuildManifest.isSafe(name)) {
+                throw new IOException("Refusing to extract " + name + " outside of " + buildsDir);
+            }
+
+            buildDirs.add(buildDirOf(name));
+
+            File file = new File(staged, name);
+            if (entry.isDirectory()) {
+                file.mkdirs();
+                continue;
+            }
+
+            file.getParentFile().mkdirs();
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                FileChannel channel = out.getChannel();
+                long length = entry.getSize();
+                long position = 0;
+                while (position < length) {
+                    long transferred = channel.transferFrom(source, position, length - position);
+                    if (transferred <= 0) {
+                        throw new EOFException("Archive ends in the middle of " + name);
+                    }
+                    position += transferred;
+                }
+                channel.force(true);
+            } finally {
+                out.close();
+            }
+            file.setLastModified(entry.getModTime().getTime());
+
+            if (blobs != null) {
+                blobs.store(file);
+            }
+        }
+
+        // the archive is complete only if it ends with the zero records the sender
+        // writes, a stream that breaks off, even on a block boundary, ends before them
+        if (end.ended) {
+            throw new EOFException("Archive ends before its end-of-archive record");
+        }
+    }
+
+    /**
+     * Notices the end of the stream, which the tar stream reports the same
+     * way as the end-of-archive record.
+     */
+    private static final class EndAwareInputStream extends FilterInputStream {
+        boolean ended;
+
+        EndAwareInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                ended = true;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) {
+                ended = true;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Moves the extracted builds into the builds directory, replacing the
+     * older versions of them. If one of them can't be moved, those moved
+     * already are taken back out, so that either all or none of them are in.
+     *
+     * @param blobs
+     *      Store to take the files from that haven't been sent because it has
+     *      them, null if the store is not used.
+     * @return names of the build directories the stream contained.
+     */
+    Set<String> commit(BlobStore blobs) throws IOException {
+        buildsDir.mkdirs();
+        getReplaced(dir).mkdirs();
+        List<String> committed = new ArrayList<String>();
+        boolean done = false;
+        try {
+            for (String name : buildDirs) {
+                commit(name, blobs);
+                committed.add(name);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                rollBack(committed);
+            }
+        }
+        return buildDirs;
+    }
+
+    /**
+     * Moves one extracted build into the builds directory.
+     */
+    private void commit(String name, BlobStore blobs) throws IOException {
+        File staged = getStaged();
+        File build = new File(staged, name);
+        File target = new File(buildsDir, name);
+        File old = new File(getReplaced(dir), name);
+        for (BuildManifest.Entry e : takeFromStore(target)) {
+            File file = new File(staged, e.path);
+            if (!file.exists() && (blobs == null || !blobs.materialize(e, file))) {
+                // the sender checks again next time
+                throw new IOException("Stored copy of " + e.path + " is gone");
+            }
+        }
+        if (target.exists()) {
+            // only what has changed was sent, the rest is taken from the old version
+            carryOver(target, build);
+            rename(target, old);
+        }
+        try {
+            rename(build, target);
+        } catch (IOException e) {
+            if (old.exists() && !old.renameTo(target)) {
+                // left for discard() or the next start to try again
+                LOGGER.severe("Failed to move " + old + " back to " + target);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Takes the builds moved in already back out to the staging directory,
+     * and puts their old versions back.
+     */
+    private void rollBack(List<String> committed) {
+        for (int i = committed.size() - 1; i >= 0; i--) {
+            String name = committed.get(i);
+            File target = new File(buildsDir, name);
+            LOGGER.warning("Taking " + target + " back out, the builds that came with it couldn't be moved in");
+            if (!target.renameTo(new File(getStaged(), name))) {
+                LOGGER.severe("Failed to move " + target + " back to " + getStaged());
+                continue;
+            }
+            File old = new File(getReplaced(dir), name);
+            if (old.exists() && !old.renameTo(target)) {
+                // left for discard() or the next start to try again
+                LOGGER.severe("Failed to move " + old + " back to " + target);
+            }
+        }
+    }
+
+    /**
+     * Links the files that haven't been received from the old version of the
+     * build into the new one, leaving the old version intact.
+     */
+    private static void carryOver(File from, File to) throws IOException {
+        String[] names = from.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            File file = new File(from, name);
+            File dest = new File(to, name);
+            if (file.isDirectory()) {
+                if (!dest.exists()) {
+                    dest.mkdirs();
+                }
+                if (dest.isDirectory()) {
+                    carryOver(file, dest);
+                }
+            } else if (!dest.exists()) {
+                to.mkdirs();
+                if (!BlobStore.createLink(dest, file)) {
+                    FileUtils.copyFile(file, dest);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the old versions of the builds back in place where the new
+     * version has not made it.
+     *
+     * @return false if some of them couldn't be moved back, so the staging
+     *      directory has to be kept.
+     */
+    private static boolean restore(File dir, File buildsDir) {
+        String[] names = getReplaced(dir).list();
+        if (names == null) {
+            return true;
+        }
+        boolean restored = true;
+        for (String name : names) {
+            File old = new File(getReplaced(dir), name);
+            File target = new File(buildsDir, name);
+            if (target.exists()) {
+                continue;
+            }
+            LOGGER.warning("Restoring " + target + " from " + old);
+            if (!old.renameTo(target)) {
+                LOGGER.severe("Failed to move " + old + " back to " + target);
+                restored = false;
+            }
+        }
+        return restored;
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Failed to move " + from + " to " + to);
+        }
+    }
+
+    /**
+     * Removes the staging directory along with what hasn't been committed.
+     */
+    void discard() {
+        delete(dir, buildsDir);
+    }
+
+    /**
+     * Deletes the staging directory, unless it holds the only copy of a build.
+     */
+    private static void delete(File dir, File buildsDir) {
+        if (!restore(dir, buildsDir)) {
+            LOGGER.warning("Keeping " + dir + ", it holds builds that couldn't be moved back");
+            return;
+        }
+        try {
+            Util.deleteRecursive(dir);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete " + dir, e);
+        }
+    }
+
+    /**
+     * Removes the builds that were being received when Jenkins went down,
+     * after putting back the builds they were about to replace.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void cleanUp() {
+        for (AbstractProject<?, ?> project : Jenkins.getInstance().getAllItems(AbstractProject.class)) {
+            File buildsDir = Jenkins.getInstance().getBuildDirFor(project);
+            File[] dirs = getRoot(buildsDir).listFiles();
+            if (dirs == null) {
+                continue;
+            }
+            LOGGER.info("Deleting incomplete incoming builds in " + getRoot(buildsDir));
+            for (File dir : dirs) {
+                delete(dir, buildsDir);
+            }
+            getRoot(buildsDir).delete();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package hudson.plugins.build_publisher;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Job;
+import hudson.model.TaskListener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * Build archive received in parts, kept until it is complete.
+ *
+ * <p>
+ * Instead of sending the archive along with the request that accepts the
+ * builds, the sender can stage it on the receiving instance first, under an
+ * upload id of its choice. Each part is stored in
+ * <tt>$JENKINS_HOME/build-publisher/uploads/JOB/ID</tt>, <tt>JOB</tt> being
+ * the digest of the full name of the job, in a file named by its offset in
+ * the archive, and is kept even if the request breaks off, so that
+ * the sender can ask how much of the archive has arrived and continue from
+ * there. The request accepting the builds then names the upload, with the
+ * length and the digest of the whole archive to make sure the parts fit
+ * together.
+ *
+ * <p>
+ * The uploads of a job are kept apart from those of the others, as the
+ * permission to stage an upload is checked against the job it is for.
+ *
+ * @see ExternalProjectProperty#doUpload
+ */
+/*package*/ final class StagedUpload {
+
+    /**
+     * Uploads not touched for this long are abandoned.
+     */
+    private static final long MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    private static final Pattern ID = Pattern.compile("[A-Za-z0-9-]{1,64}");
+
+    /**
+     * Parts of an upload may arrive over several connections at once.
+     */
+    private static final Object LOCK = new Object();
+
+    private final File dir;
+
+    /**
+     * @throws IllegalArgumentException
+     *      If the id is not valid.
+     */
+    StagedUpload(Job<?, ?> job, String id) {
+        this(getRoot(), job.getFullName(), id);
+    }
+
+    /**
+     * @param root
+     *      Directory holding the uploads.
+     * @param job
+     *      Full name of the job the upload is for.
+     */
+    StagedUpload(File root, String job, String id) {
+        if (id == null || !ID.matcher(id).matches()) {
+            throw new IllegalArgumentException("Invalid upload id: " + id);
+        }
+        this.dir = new File(new File(root, Util.getDigestOf(job)), id);
+    }
+
+    private static File getRoot() {
+        return new File(Jenkins.getInstance().getRootDir(), "build-publisher/uploads");
+    }
+
+    /**
+     * Stores the data starting at the given offset of the archive. What has
+     * been received is kept even if reading the data fails.
+     */
+    void write(long offset, InputStream in) throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Invalid offset: " + offset);
+        }
+        dir.mkdirs();
+        File tmp = File.createTempFile("part-" + offset + "-", ".tmp", dir);
+        long length = 0;
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                out.write(buf, 0, len);
+                length += len;
+            }
+        } finally {
+            try {
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+                commit(tmp, offset, length);
+            }
+        }
+    }
+
+    private void commit(File tmp, long offset, long length) {
+        synchronized (LOCK) {
+            File part = new File(dir, String.valueOf(offset));
+            if (length == 0 || (part.exists() && part.length() >= length)) {
+                tmp.delete();
+                return;
+            }
+            part.delete();
+            tmp.renameTo(part);
+        }
+    }
+
+    /**
+     * Gets the length of the part of the archive that has arrived without a gap.
+     */
+    long getCommittedLength() {
+        synchronized (LOCK) {
+            long end = 0;
+            for (File part : parts()) {
+                long offset = Long.parseLong(part.getName());
+                if (offset > end) {
+                    break;
+                }
+                end = Math.max(end, offset + part.length());
+            }
+            return end;
+        }
+    }
+
+    /**
+     * Checks whether the staged archive is the one the sender has sent.
+     */
+    boolean matches(long length, String digest) throws IOException {
+        if (getCommittedLength() < length) {
+            return false;
+        }
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        InputStream in = open(length);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) >= 0) {
+                md5.update(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return Util.toHexString(md5.digest()).equalsIgnoreCase(digest);
+    }
+
+    /**
+     * Reads the first bytes of the staged archive, skipping what the parts have in common.
+     */
+    InputStream open(long length) throws IOException {
+        List<InputStream> streams = new ArrayList<InputStream>();
+        long end = 0;
+        try {
+            for (File part : parts()) {
+                long offset = Long.parseLong(part.getName());
+                if (offset > end || end >= length) {
+                    break;
+                }
+                if (offset + part.length() <= end) {
+                    continue;
+                }
+                InputStream in = new FileInputStream(part);
+                streams.add(in);
+                IOUtils.skipFully(in, end - offset);
+                end = offset + part.length();
+            }
+        } catch (IOException e) {
+            for (InputStream in : streams) {
+                IOUtils.closeQuietly(in);
+            }
+            throw e;
+        }
+        return new BoundedInputStream(new SequenceInputStream(Collections.enumeration(streams)), length);
+    }
+
+    void delete() throws IOException {
+        Util.deleteRecursive(dir);
+    }
+
+    /**
+     * Complete parts in the order of their offsets.
+     */
+    private List<File> parts() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> parts = new ArrayList<File>();
+        for (File file : files) {
+            if (!file.getName().endsWith(".tmp")) {
+                parts.add(file);
+            }
+        }
+        Collections.sort(parts, BY_OFFSET);
+        return parts;
+    }
+
+    private static final Comparator<File> BY_OFFSET = new Comparator<File>() {
+        public int compare(File f1, File f2) {
+            long o1 = Long.parseLong(f1.getName());
+            long o2 = Long.parseLong(f2.getName());
+            return o1 < o2 ? -1 : (o1 == o2 ? 0 : 1);
+        }
+    };
+
+    /**
+     * Removes the uploads the senders have given up on.
+     */
+    @Extension
+    public static class AbandonedUploadCollector extends AsyncPeriodicWork {
+        public AbandonedUploadCollector() {
+            super("Build publisher abandoned upload cleanup");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.HOURS.toMillis(1);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            File[] jobs = getRoot().listFiles();
+            if (jobs == null) {
+                return;
+            }
+            long threshold = System.currentTimeMillis() - MAX_AGE;
+            for (File job : jobs) {
+                File[] uploads = job.listFiles();
+                if (uploads == null) {
+                    continue;
+                }
+                for (File upload : uploads) {
+                    if (lastModified(upload) < threshold) {
+                        listener.getLogger().println("Deleting abandoned upload " + upload.getName());
+                        Util.deleteRecursive(upload);
+                    }
+                }
+                // only if no upload has been started meanwhile
+                job.delete();
+            }
+        }
+
+        private static long lastModified(File upload) {
+            long lastModified = upload.lastModified();
+            File[] parts = upload.listFiles();
+            for (File part : parts != null ? Arrays.asList(parts) : Collections.<File>emptyList()) {
+                lastModified = Math.max(lastModified, part.lastModified());
+            }
+            return lastModified;
+        }
+    }
+}
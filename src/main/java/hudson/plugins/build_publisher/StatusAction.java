@@ -11,6 +11,8 @@ import java.io.IOException;
 
 /**
  * Build action displaying publishing status.
+ *
+ * @see StatusStore
  * 
  * @author dvrzalik
  */
@@ -103,20 +105,26 @@ public class StatusAction implements Action {
 
     /**
      * Sets statusAction for the build
+     *
+     * <p>
+     * The status is kept in the {@link StatusStore}, build.xml is only saved to
+     * get rid of a status stored there by older versions.
      */
     public static void setBuildStatusAction(AbstractBuild build,
             StatusAction statusAction) {
-        removeAction(build);
-
-        if (statusAction != null) {
-            build.addAction(statusAction);
+        if (removeAction(build) != null) {
+            try {
+                build.save();
+            } catch (IOException e) {
+                e.printStackTrace();
+                HudsonInstance.LOGGER.severe(e.getMessage());
+            }
         }
 
-        try {
-            build.save();
-        } catch (IOException e) {
-            e.printStackTrace();
-            HudsonInstance.LOGGER.severe(e.getMessage());
+        if (statusAction != null) {
+            StatusStore.get().put(build, statusAction.getStatusInfo());
+        } else {
+            StatusStore.get().remove(build);
         }
     }
 
@@ -0,0 +1,325 @@
+package hudson.plugins.build_publisher;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TransientBuildActionFactory;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import jenkins.util.Timer;
+
+/**
+ * Publishing status of the builds, kept outside of <tt>build.xml</tt>.
+ *
+ * <p>
+ * Each job has a <tt>build-publisher-status.xml</tt> with the status of its
+ * builds, so that the status changes during the publishing don't rewrite
+ * <tt>build.xml</tt> over and over again. The changes are written shortly
+ * afterwards in the background, several changes of a job at once.
+ *
+ * <p>
+ * The {@link StatusAction}s of the builds are created from the store on demand.
+ * Only the jobs used lately are held in memory, the others are read back from
+ * their files when needed, outside of the lock of the store so that a job
+ * being read doesn't hold up the pages of the others. The status of a build
+ * is kept until the build is deleted.
+ */
+public final class StatusStore {
+
+    private static final String FILE_NAME = "build-publisher-status.xml";
+
+    /**
+     * How long the changes are collected before they are written.
+     */
+    private static final long FLUSH_DELAY = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * Number of jobs held in memory, besides those with changes not written yet.
+     */
+    private static final int MAX_JOBS = 100;
+
+    private static final StatusStore INSTANCE = new StatusStore();
+
+    /**
+     * Statuses of the builds of one job.
+     */
+    private static final class JobStatuses {
+        final XmlFile file;
+        final NavigableMap<Integer, StatusInfo> statuses = new TreeMap<Integer, StatusInfo>();
+        boolean dirty;
+        /**
+         * Counts the changes, to tell if there were more while writing.
+         */
+        int changes;
+
+        @SuppressWarnings("unchecked")
+        JobStatuses(File rootDir) {
+            file = new XmlFile(new File(rootDir, FILE_NAME));
+            if (file.exists()) {
+                try {
+                    statuses.putAll((Map<Integer, StatusInfo>) file.read());
+                } catch (IOException e) {
+                    HudsonInstance.LOGGER.log(Level.WARNING, "Could not load publishing status from "
+                            + file.getFile().getAbsolutePath(), e);
+                }
+            }
+        }
+
+        /**
+         * Moved along with the job, the changes not written yet go to the new place.
+         */
+        JobStatuses(File rootDir, JobStatuses moved) {
+            file = new XmlFile(new File(rootDir, FILE_NAME));
+            statuses.putAll(moved.statuses);
+            dirty = moved.dirty;
+        }
+    }
+
+    /**
+     * Full name of the job to the statuses of its builds, the ones used last
+     * at the end.
+     */
+    private final LinkedHashMap<String, JobStatuses> jobs = new LinkedHashMap<String, JobStatuses>(16, 0.75f, true);
+
+    private boolean flushScheduled;
+
+    static StatusStore get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return null if the build has no publishing status.
+     */
+    StatusInfo get(Run build) {
+        JobStatuses job = getJob(build);
+        synchronized (this) {
+            return job.statuses.get(build.getNumber());
+        }
+    }
+
+    void put(Run build, StatusInfo status) {
+        JobStatuses loaded = getJob(build);
+        synchronized (this) {
+            JobStatuses job = held(build, loaded);
+            job.statuses.put(build.getNumber(), status);
+            changed(job);
+        }
+    }
+
+    void remove(Run build) {
+        JobStatuses loaded = getJob(build);
+        synchronized (this) {
+            JobStatuses job = held(build, loaded);
+            if (job.statuses.remove(build.getNumber()) != null) {
+                changed(job);
+            }
+        }
+    }
+
+    /**
+     * Makes sure the statuses about to be changed are held in memory, so that
+     * the change gets written. Only the jobs with nothing pending are evicted,
+     * so one evicted since it was looked up can be put back as it is.
+     */
+    private JobStatuses held(Run build, JobStatuses loaded) {
+        String name = build.getParent().getFullName();
+        JobStatuses job = jobs.get(name);
+        if (job == null) {
+            job = loaded;
+            jobs.put(name, job);
+        }
+        return job;
+    }
+
+    /**
+     * Gets the statuses of the job of the build, reading them from the file
+     * outside of the lock if they are not in memory.
+     */
+    private JobStatuses getJob(Run build) {
+        Job<?, ?> parent = build.getParent();
+        String name = parent.getFullName();
+        synchronized (this) {
+            JobStatuses job = jobs.get(name);
+            if (job != null) {
+                return job;
+            }
+        }
+
+        JobStatuses loaded = new JobStatuses(parent.getRootDir());
+        synchronized (this) {
+            // another thread may have read it meanwhile, or made changes
+            JobStatuses job = jobs.get(name);
+            if (job == null) {
+                job = loaded;
+                jobs.put(name, job);
+                evict();
+            }
+            return job;
+        }
+    }
+
+    /**
+     * Forgets the jobs used least lately over the limit, unless they have
+     * changes to be written.
+     */
+    private void evict() {
+        int excess = jobs.size() - MAX_JOBS;
+        for (Iterator<JobStatuses> it = jobs.values().iterator(); excess > 0 && it.hasNext();) {
+            if (!it.next().dirty) {
+                it.remove();
+                excess--;
+            }
+        }
+    }
+
+    /**
+     * Forgets the statuses of a deleted job, or of a deleted folder.
+     */
+    synchronized void deleted(String fullName) {
+        for (Iterator<String> it = jobs.keySet().iterator(); it.hasNext();) {
+            String name = it.next();
+            if (name.equals(fullName) || name.startsWith(fullName + "/")) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Follows a job that was renamed or moved.
+     */
+    synchronized void moved(String oldFullName, Job<?, ?> job) {
+        JobStatuses statuses = jobs.remove(oldFullName);
+        // if nothing is pending, the file has moved along with the job
+        if (statuses != null && statuses.dirty) {
+            jobs.put(job.getFullName(), new JobStatuses(job.getRootDir(), statuses));
+        }
+    }
+
+    private void changed(JobStatuses job) {
+        job.dirty = true;
+        job.changes++;
+        if (!flushScheduled) {
+            flushScheduled = true;
+            Timer.get().schedule(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes all the pending changes.
+     */
+    void flush() {
+        Map<JobStatuses, Map<Integer, StatusInfo>> pending = new HashMap<JobStatuses, Map<Integer, StatusInfo>>();
+        Map<JobStatuses, Integer> changes = new HashMap<JobStatuses, Integer>();
+        synchronized (this) {
+            flushScheduled = false;
+            for (JobStatuses job : jobs.values()) {
+                if (job.dirty) {
+                    pending.put(job, new TreeMap<Integer, StatusInfo>(job.statuses));
+                    changes.put(job, job.changes);
+                }
+            }
+        }
+
+        // write outside of the lock, the publishing goes on meanwhile
+        for (Map.Entry<JobStatuses, Map<Integer, StatusInfo>> e : pending.entrySet()) {
+            XmlFile file = e.getKey().file;
+            try {
+                file.write(e.getValue());
+            } catch (IOException ex) {
+                HudsonInstance.LOGGER.log(Level.SEVERE, "Could not save publishing status to "
+                        + file.getFile().getAbsolutePath(), ex);
+                changes.remove(e.getKey());
+            }
+        }
+
+        synchronized (this) {
+            for (Map.Entry<JobStatuses, Integer> e : changes.entrySet()) {
+                // otherwise it is written again by the next flush
+                if (e.getKey().changes == e.getValue()) {
+                    e.getKey().dirty = false;
+                }
+            }
+            // kept in memory only until written, so that they are not read back stale
+            evict();
+        }
+    }
+
+    /**
+     * Shows the publishing status on the build page.
+     */
+    @Extension
+    public static class StatusActionFactory extends TransientBuildActionFactory {
+        @Override
+        public Collection<? extends Action> createFor(Run target) {
+            if (!(target instanceof AbstractBuild)) {
+                return Collections.emptyList();
+            }
+            StatusInfo status = get().get(target);
+            if (status == null) {
+                return Collections.emptyList();
+            }
+            List<Action> actions = new ArrayList<Action>();
+            actions.add(new StatusAction(status, (AbstractBuild) target));
+            return actions;
+        }
+    }
+
+    /**
+     * Forgets the status of deleted builds.
+     */
+    @Extension
+    public static class DeletedBuildListener extends RunListener<Run> {
+        @Override
+        public void onDeleted(Run r) {
+            get().remove(r);
+        }
+    }
+
+    /**
+     * Follows the jobs that are deleted or moved, and writes the pending
+     * changes before Jenkins goes down.
+     */
+    @Extension
+    public static class JobListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            get().deleted(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (item instanceof Job) {
+                get().moved(oldFullName, (Job<?, ?>) item);
+            }
+        }
+
+        @Override
+        public void onBeforeShutdown() {
+            get().flush();
+        }
+    }
+}
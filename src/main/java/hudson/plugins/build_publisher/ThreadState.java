@@ -33,8 +33,11 @@ public abstract class ThreadState {
     }
 
     /**
-     * {@link PublisherThread} encountered an error and is waiting before
-     * it attempts the tranmission again.
+     * A build couldn't be published and waits before the tranmission is
+     * attempted again. The {@link PublisherThread}s meanwhile go on with the
+     * other builds.
+     *
+     * @see HudsonInstance#getFailures()
      */
     public static class ErrorRecoveryWait extends ThreadState {
         /**
@@ -66,7 +69,7 @@ public abstract class ThreadState {
         }
 
         public String getTimeoutString() {
-            return Util.getTimeSpanString(timeout-System.currentTimeMillis());
+            return Util.getTimeSpanString(Math.max(0, timeout-System.currentTimeMillis()));
         }
 
         public String getStackTrace() {
@@ -0,0 +1,51 @@
+package hudson.plugins.build_publisher;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stream that keeps within the rates of the given {@link TokenBucket}s and
+ * measures how fast the data actually go.
+ */
+/*package*/ final class ThrottledOutputStream extends FilterOutputStream {
+
+    /**
+     * Most bytes written at once, so that the rate stays even.
+     */
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final ThroughputMeter meter;
+    private final TokenBucket[] buckets;
+
+    ThrottledOutputStream(OutputStream out, ThroughputMeter meter, TokenBucket... buckets) {
+        super(out);
+        this.meter = meter;
+        this.buckets = buckets;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        take(1);
+        out.write(b);
+        meter.count(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, CHUNK_SIZE);
+            take(n);
+            out.write(b, off, n);
+            meter.count(n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void take(int bytes) throws IOException {
+        for (TokenBucket bucket : buckets) {
+            bucket.take(bytes);
+        }
+    }
+}
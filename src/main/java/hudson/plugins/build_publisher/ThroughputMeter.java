@@ -0,0 +1,61 @@
+package hudson.plugins.build_publisher;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many bytes per second are sent.
+ */
+public final class ThroughputMeter {
+
+    /**
+     * Period over which the rate is averaged.
+     */
+    private static final long WINDOW = TimeUnit.SECONDS.toMillis(5);
+
+    private long windowStart = System.currentTimeMillis();
+    private long windowBytes;
+    private long bytesPerSecond;
+
+    synchronized void count(long bytes) {
+        roll(System.currentTimeMillis());
+        windowBytes += bytes;
+    }
+
+    /**
+     * Gets the rate over the last complete period.
+     */
+    public synchronized long getBytesPerSecond() {
+        roll(System.currentTimeMillis());
+        return bytesPerSecond;
+    }
+
+    public String getThroughputString() {
+        return formatRate(getBytesPerSecond());
+    }
+
+    private void roll(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed >= WINDOW) {
+            bytesPerSecond = windowBytes * 1000 / elapsed;
+            windowStart = now;
+            windowBytes = 0;
+        }
+    }
+
+    static String formatRate(long bytesPerSecond) {
+        return formatSize(bytesPerSecond) + "/s";
+    }
+
+    static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KiB", bytes / 1024.0);
+        }
+        if (bytes < 1024L * 1024 * 1024) {
+            return String.format("%.1f MiB", bytes / (1024.0 * 1024));
+        }
+        return String.format("%.1f GiB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
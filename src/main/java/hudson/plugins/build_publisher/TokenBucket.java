@@ -0,0 +1,73 @@
+package hudson.plugins.build_publisher;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which data are sent.
+ *
+ * <p>
+ * The bucket fills with a token per byte at the configured rate, up to the
+ * amount of one second. Senders take the tokens for the bytes they are about
+ * to send, and if there are not enough of them, they wait until the bucket
+ * catches up. The senders sharing a bucket share its rate.
+ */
+/*package*/ final class TokenBucket {
+
+    /**
+     * Bytes per second, 0 means unlimited.
+     */
+    private long rate;
+
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * @param rate
+     *      Bytes per second, 0 for unlimited.
+     */
+    synchronized void setRate(long rate) {
+        if (rate == this.rate) {
+            return;
+        }
+        refill();
+        this.rate = rate;
+        tokens = Math.min(tokens, rate);
+    }
+
+    /**
+     * Takes the tokens for the given number of bytes, waiting for them if needed.
+     */
+    void take(int bytes) throws InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            if (rate <= 0) {
+                return;
+            }
+            refill();
+            // go into debt, the following senders wait for it to be paid off
+            tokens -= bytes;
+            wait = tokens < 0 ? (long) (-tokens * 1000 / rate) : 0;
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (rate > 0) {
+            tokens = Math.min(rate, tokens + (double) (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        }
+        lastRefill = now;
+    }
+}
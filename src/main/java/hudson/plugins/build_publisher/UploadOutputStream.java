@@ -0,0 +1,65 @@
+package hudson.plugins.build_publisher;
+
+import hudson.Util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stream of an archive staged on the remote instance. All the data are
+ * counted and digested, but only those following the given offset are
+ * passed on, the rest has arrived before.
+ *
+ * @see StagedUpload
+ */
+/*package*/ final class UploadOutputStream extends FilterOutputStream {
+
+    private final long offset;
+    private final MessageDigest md5;
+    private long length;
+
+    UploadOutputStream(OutputStream out, long offset) {
+        super(out);
+        this.offset = offset;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        md5.update((byte) b);
+        if (length++ >= offset) {
+            out.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        md5.update(b, off, len);
+        long skip = Math.max(0, Math.min(len, offset - length));
+        length += len;
+        if (skip < len) {
+            out.write(b, off + (int) skip, len - (int) skip);
+        }
+    }
+
+    /**
+     * Gets the length of the whole archive written so far.
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the hex encoded MD5 of the whole archive, once it is written.
+     */
+    String getDigest() {
+        return Util.toHexString(md5.digest());
+    }
+}
@@ -0,0 +1,44 @@
+package hudson.plugins.build_publisher;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Calendar;
+
+import org.junit.Test;
+
+public class BandwidthScheduleTest {
+
+    @Test
+    public void firstMatchingLineApplies() {
+        BandwidthSchedule schedule = BandwidthSchedule.parse("# office hours\n08:00-18:00 256\n\n07:00-20:00 512\n");
+        assertEquals(512, schedule.getBandwidth(at(7, 59)));
+        assertEquals(256, schedule.getBandwidth(at(8, 0)));
+        assertEquals(512, schedule.getBandwidth(at(18, 0)));
+        assertEquals(-1, schedule.getBandwidth(at(20, 0)));
+    }
+
+    @Test
+    public void rangeOverMidnight() {
+        BandwidthSchedule schedule = BandwidthSchedule.parse("22:00-06:00 0");
+        assertEquals(0, schedule.getBandwidth(at(23, 30)));
+        assertEquals(0, schedule.getBandwidth(at(5, 59)));
+        assertEquals(-1, schedule.getBandwidth(at(6, 0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidTime() {
+        BandwidthSchedule.parse("25:00-06:00 100");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingBandwidth() {
+        BandwidthSchedule.parse("22:00-06:00");
+    }
+
+    private static Calendar at(int hour, int minute) {
+        Calendar c = Calendar.getInstance();
+        c.set(Calendar.HOUR_OF_DAY, hour);
+        c.set(Calendar.MINUTE, minute);
+        return c;
+    }
+}
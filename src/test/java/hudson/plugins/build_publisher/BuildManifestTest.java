@@ -0,0 +1,71 @@
+package hudson.plugins.build_publisher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BuildManifestTest {
+
+    public @Rule TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void missingFiles() throws Exception {
+        File local = tmp.newFolder("local");
+        FileUtils.writeStringToFile(new File(local, "1/log"), "log");
+        FileUtils.writeStringToFile(new File(local, "1/archive/file name"), "artifact");
+        FileUtils.writeStringToFile(new File(local, "1/changelog.xml"), "<log/>");
+
+        BuildManifest manifest = new BuildManifest();
+        manifest.add("1/log", new File(local, "1/log"));
+        manifest.add("1/archive/file name", new File(local, "1/archive/file name"));
+        manifest.add("1/changelog.xml", new File(local, "1/changelog.xml"));
+
+        StringWriter wire = new StringWriter();
+        manifest.write(wire);
+        BuildManifest received = BuildManifest.read(new StringReader(wire.toString()));
+        assertEquals(3, received.size());
+
+        File remote = tmp.newFolder("remote");
+        assertEquals(Arrays.asList("1/log", "1/archive/file name", "1/changelog.xml"), received.missingIn(remote, null, null));
+
+        FileUtils.writeStringToFile(new File(remote, "1/log"), "log");
+        FileUtils.writeStringToFile(new File(remote, "1/archive/file name"), "artifacT");
+        FileUtils.copyFile(new File(local, "1/changelog.xml"), new File(remote, "1/changelog.xml"));
+        assertEquals(Collections.singletonList("1/archive/file name"), received.missingIn(remote, null, null));
+    }
+
+    @Test
+    public void logsAreNotStored() throws Exception {
+        BlobStore blobs = new BlobStore(tmp.newFolder("blobs"));
+        File log = new File(tmp.newFolder("1"), "log");
+        FileUtils.writeStringToFile(log, StringUtils.repeat("line\n", 1000));
+        blobs.store(log);
+
+        BuildManifest manifest = new BuildManifest();
+        manifest.add("1/log", log);
+        List<BuildManifest.Entry> inStore = new ArrayList<BuildManifest.Entry>();
+        assertEquals(Collections.singletonList("1/log"), manifest.missingIn(tmp.newFolder("remote"), blobs, inStore));
+        assertTrue(inStore.isEmpty());
+    }
+
+    @Test
+    public void unsafePaths() {
+        assertTrue(BuildManifest.isSafe("1/archive/a..b"));
+        assertFalse(BuildManifest.isSafe("1/../../config.xml"));
+        assertFalse(BuildManifest.isSafe("/etc/passwd"));
+    }
+}
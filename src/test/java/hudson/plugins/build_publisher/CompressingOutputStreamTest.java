@@ -0,0 +1,80 @@
+package hudson.plugins.build_publisher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompressingOutputStreamTest {
+
+    public @Rule TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void roundtripWithStoredParts() throws Exception {
+        byte[] text = new byte[100000];
+        byte[] noise = new byte[100000];
+        new Random(42).nextBytes(noise);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressingOutputStream gz = new CompressingOutputStream(out, 9);
+        gz.write(text);
+        gz.setCompressing(false);
+        gz.write(noise);
+        gz.setCompressing(true);
+        gz.write(text);
+        gz.close();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(text);
+        expected.write(noise);
+        expected.write(text);
+        byte[] actual = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+        assertArrayEquals(expected.toByteArray(), actual);
+    }
+
+    @Test
+    public void switchTakesEffectRightAway() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressingOutputStream gz = new CompressingOutputStream(out, 9);
+        gz.write(new byte[100000]);
+        gz.setCompressing(false);
+        gz.write(new byte[8192]);
+        gz.close();
+        // the zeros written after the switch are stored, not deflated with the old level
+        assertTrue(out.size() > 8192);
+    }
+
+    @Test
+    public void compressible() throws Exception {
+        File log = write("log", new byte[100000]);
+        assertTrue(CompressingOutputStream.isCompressible(log));
+
+        byte[] noise = new byte[100000];
+        new Random(42).nextBytes(noise);
+        assertFalse(CompressingOutputStream.isCompressible(write("random.bin", noise)));
+
+        assertFalse(CompressingOutputStream.isCompressible(write("library.JAR", new byte[100000])));
+    }
+
+    private File write(String name, byte[] content) throws Exception {
+        File file = new File(tmp.getRoot(), name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,85 @@
+package hudson.plugins.build_publisher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.tar.TarOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HTTPBuildTransmitterTest {
+
+    public @Rule TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void stripStatusAction() {
+        String buildXml = "<build>\n"
+                + "  <actions>\n"
+                + "    <hudson.model.CauseAction/>\n"
+                + "    <hudson.plugins.build__publisher.StatusAction plugin=\"build-publisher@1.20\">\n"
+                + "      <statuses><entry/></statuses>\n"
+                + "    </hudson.plugins.build__publisher.StatusAction>\n"
+                + "    <hudson.plugins.build__publisher.StatusAction/>\n"
+                + "  </actions>\n"
+                + "  <number>42</number>\n"
+                + "</build>\n";
+        assertEquals("<build>\n"
+                + "  <actions>\n"
+                + "    <hudson.model.CauseAction/>\n"
+                + "  </actions>\n"
+                + "  <number>42</number>\n"
+                + "</build>\n", HTTPBuildTransmitter.stripStatusAction(buildXml));
+    }
+
+    @Test
+    public void stripStatusActionKeepsTheBytes() throws Exception {
+        // Latin-1 encoded, not valid UTF-8
+        byte[] buildXml = ("<?xml version='1.0' encoding='ISO-8859-1'?>\n"
+                + "<build>\n"
+                + "  <description>Gr\u00fc\u00dfe</description>\n"
+                + "  <actions>\n"
+                + "    <hudson.plugins.build__publisher.StatusAction/>\n"
+                + "  </actions>\n"
+                + "</build>\n").getBytes("ISO-8859-1");
+        assertArrayEquals(("<?xml version='1.0' encoding='ISO-8859-1'?>\n"
+                + "<build>\n"
+                + "  <description>Gr\u00fc\u00dfe</description>\n"
+                + "  <actions>\n"
+                + "  </actions>\n"
+                + "</build>\n").getBytes("ISO-8859-1"), HTTPBuildTransmitter.stripStatusAction(buildXml));
+
+        byte[] unchanged = "<build>\n  <number>42</number>\n</build>\n".getBytes("UTF-8");
+        assertSame(unchanged, HTTPBuildTransmitter.stripStatusAction(unchanged));
+    }
+
+    @Test
+    public void archiveIsTheSameEveryTime() throws Exception {
+        File buildDir = new File(tmp.newFolder("builds"), "42");
+        FileUtils.writeStringToFile(new File(buildDir, "log"), "log");
+        FileUtils.writeStringToFile(new File(buildDir, "archive/a.txt"), "artifact");
+        FileUtils.writeStringToFile(new File(buildDir, "build.xml"), "<build/>");
+
+        byte[] first = archive(buildDir);
+        // entries not stamped with the time they are written
+        Thread.sleep(1100);
+        byte[] second = archive(buildDir);
+        assertArrayEquals(first, second);
+    }
+
+    private static byte[] archive(File buildDir) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarOutputStream tar = new TarOutputStream(out);
+        tar.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+        int count = new HTTPBuildTransmitter().writeToTar(tar, null, buildDir, 1234567890000L,
+                new PublishedFiles(buildDir, null, null), null);
+        tar.close();
+        assertEquals(2, count);
+        return out.toByteArray();
+    }
+}
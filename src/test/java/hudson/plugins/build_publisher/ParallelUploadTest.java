@@ -0,0 +1,62 @@
+package hudson.plugins.build_publisher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class ParallelUploadTest {
+
+    @Test
+    public void chunksStartAtTheirOffsets() throws IOException {
+        byte[] archive = new byte[35];
+        for (int i = 0; i < archive.length; i++) {
+            archive[i] = (byte) i;
+        }
+        final Map<Long, byte[]> sent = Collections.synchronizedMap(new TreeMap<Long, byte[]>());
+        ParallelUpload upload = new ParallelUpload(new ParallelUpload.ChunkSender() {
+            public void send(long offset, byte[] data, int length) {
+                sent.put(offset, Arrays.copyOf(data, length));
+            }
+        }, 100, 10, 3, "test");
+        // not aligned to the chunks
+        upload.write(archive, 0, 7);
+        upload.write(archive, 7, 20);
+        upload.write(archive[27]);
+        upload.write(archive, 28, 7);
+        upload.close();
+
+        assertEquals(Arrays.asList(100L, 110L, 120L, 130L), Arrays.asList(sent.keySet().toArray()));
+        for (Map.Entry<Long, byte[]> e : sent.entrySet()) {
+            int from = (int) (e.getKey() - 100);
+            assertArrayEquals(Arrays.copyOfRange(archive, from, Math.min(from + 10, archive.length)), e.getValue());
+        }
+    }
+
+    @Test
+    public void failedChunkFailsTheUpload() throws IOException {
+        final IOException failure = new IOException("Connection refused");
+        ParallelUpload upload = new ParallelUpload(new ParallelUpload.ChunkSender() {
+            public void send(long offset, byte[] data, int length) throws IOException {
+                if (offset == 10) {
+                    throw failure;
+                }
+            }
+        }, 0, 10, 2, "test");
+        try {
+            upload.write(new byte[25]);
+            upload.close();
+            fail();
+        } catch (IOException e) {
+            assertSame(failure, e);
+        }
+    }
+}
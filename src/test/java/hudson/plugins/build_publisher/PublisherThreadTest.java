@@ -9,6 +9,7 @@ import hudson.matrix.AxisList;
 import hudson.matrix.MatrixConfiguration;
 import hudson.matrix.MatrixBuild;
 import hudson.matrix.MatrixProject;
+import hudson.matrix.MatrixRun;
 import hudson.matrix.TextAxis;
 import hudson.model.BuildListener;
 import hudson.model.FreeStyleBuild;
@@ -145,6 +146,44 @@ public class PublisherThreadTest {
         assertFalse(build.getArtifactsDir().exists());
     }
 
+    /**
+     * A configuration whose parent is missing on the remote instance is given
+     * up until the user creates the parent, not queued again.
+     */
+    @Test
+    public void configurationWithoutRemoteParentIsNotRetried() throws Exception {
+        switchToInternalJenkins();
+        MatrixProject project = source.createProject(MatrixProject.class, "matrix");
+        AxisList list = new AxisList();
+        list.add(new TextAxis("axis", "a"));
+        project.setAxes(list);
+        MatrixRun run = source.buildAndAssertSuccess(project).getRuns().get(0);
+
+        HudsonInstance instance = publish().getDescriptor().getPublicInstances()[0];
+        instance.publishNewBuild(run);
+        assertEquals(StatusInfo.State.INTERRUPTED, publishingState(run, StatusInfo.State.INTERRUPTED));
+
+        // give the worker the time to get it wrong
+        Thread.sleep(2000);
+        assertEquals(StatusInfo.State.INTERRUPTED, StatusStore.get().get(run).getState());
+        assertFalse(instance.getQueue().contains(run));
+    }
+
+  /*
+   * Waits for the build to reach the given publishing state
+   */
+  private StatusInfo.State publishingState(Run<?, ?> build, StatusInfo.State expected) throws Exception {
+    StatusInfo status = null;
+    for (int attemptsCount = ATTEMPTS; attemptsCount > 0; attemptsCount--) {
+        status = StatusStore.get().get(build);
+        if (status != null && status.getState() == expected) {
+            break;
+        }
+        Thread.sleep(1000);
+    }
+    return status != null ? status.getState() : null;
+  }
+
   /*
    * Test if given build exists with waiting interval
    */
@@ -0,0 +1,65 @@
+package hudson.plugins.build_publisher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class QueueJournalTest {
+
+    public @Rule TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void replay() throws Exception {
+        File file = new File(tmp.getRoot(), "bp-test.journal");
+        QueueJournal journal = new QueueJournal(file);
+        journal.add("folder/with space", 1);
+        journal.add("other", 7);
+        journal.add("folder/with space", 2);
+        journal.remove("folder/with space", 1);
+        journal.retry("other", 7, 1, 1234L);
+
+        List<QueueJournal.Entry> entries = new QueueJournal(file).replay();
+        assertEquals(2, entries.size());
+        assertEquals("folder/with space", entries.get(0).project);
+        assertEquals(2, entries.get(0).number);
+        assertEquals(0, entries.get(0).getAttempts());
+        // retried builds go to the end of the queue
+        assertEquals("other", entries.get(1).project);
+        assertEquals(1, entries.get(1).getAttempts());
+        assertEquals(1234L, entries.get(1).getNextEligible());
+    }
+
+    @Test
+    public void partialRecord() throws Exception {
+        File file = new File(tmp.getRoot(), "bp-test.journal");
+        QueueJournal journal = new QueueJournal(file);
+        journal.add("job", 1);
+        journal.add("job", 2);
+        byte[] complete = FileUtils.readFileToByteArray(file);
+        journal.add("job with space", 3);
+        byte[] written = FileUtils.readFileToByteArray(file);
+
+        // wherever the crash cuts the last record, short of the line end
+        for (int length = complete.length; length < written.length - 1; length++) {
+            FileUtils.writeByteArrayToFile(file, Arrays.copyOf(written, length));
+            journal = new QueueJournal(file);
+            assertEquals(2, journal.replay().size());
+            assertNull(journal.get("job", 3));
+        }
+
+        journal.remove("job", 2);
+        QueueJournal restored = new QueueJournal(file);
+        List<QueueJournal.Entry> entries = restored.replay();
+        assertEquals(1, entries.size());
+        assertEquals(1, entries.get(0).number);
+        assertNull(restored.get("job", 2));
+    }
+}
@@ -0,0 +1,89 @@
+package hudson.plugins.build_publisher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import hudson.plugins.build_publisher.QueueOrder.Item;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class QueueOrderTest {
+
+    private static final long NOW = 100 * PublishPriority.AGING_INTERVAL;
+
+    private final List<Item<String>> queue = new ArrayList<Item<String>>();
+
+    @Test
+    public void higherPriorityGoesFirst() {
+        queue("a", 1, 0, NOW);
+        queue("b", 1, 2, NOW);
+        queue("c", 1, 0, NOW);
+        assertEquals(Arrays.asList("b#1", "a#1", "c#1"), QueueOrder.order(queue, NOW));
+        assertEquals("b#1", pick());
+    }
+
+    @Test
+    public void buildsOfProjectStayInOrder() {
+        queue("a", 1, 0, NOW);
+        queue("b", 2, 0, NOW);
+        // the urgent build pushes the older one of its project through
+        queue("b", 1, 0, NOW);
+        queue("b", 3, 5, NOW);
+        assertEquals(Arrays.asList("b#1", "b#2", "b#3", "a#1"), QueueOrder.order(queue, NOW));
+        assertEquals("b#1", pick());
+    }
+
+    @Test
+    public void waitingBuildsAge() {
+        queue("new", 1, 2, NOW);
+        Item<String> old = queue("old", 1, 0, NOW - 3 * PublishPriority.AGING_INTERVAL + 1);
+        assertEquals(2, old.getPriority(NOW));
+        // the same priority, the one queued first goes first
+        assertEquals(Arrays.asList("new#1", "old#1"), QueueOrder.order(queue, NOW));
+        assertEquals(3, old.getPriority(NOW + 1));
+        assertEquals(Arrays.asList("old#1", "new#1"), QueueOrder.order(queue, NOW + 1));
+    }
+
+    @Test
+    public void pickSkipsBusyAndRetryingProjects() {
+        queue("busy", 1, 9, NOW);
+        queue("retrying", 1, 5, NOW, NOW + 1);
+        queue("idle", 1, 0, NOW);
+        assertEquals("idle#1", QueueOrder.pick(queue, Collections.singleton("busy"), NOW));
+        assertEquals("retrying#1", QueueOrder.pick(queue, Collections.singleton("busy"), NOW + 1));
+        queue.remove(2);
+        assertNull(QueueOrder.pick(queue, Collections.singleton("busy"), NOW));
+    }
+
+    @Test
+    public void batchStopsAtRetryingBuild() {
+        queue("a", 1, 0, NOW);
+        queue("a", 2, 0, NOW);
+        queue("b", 1, 0, NOW);
+        queue("a", 3, 0, NOW, NOW + 1);
+        queue("a", 4, 0, NOW);
+        assertEquals(Arrays.asList("a#1", "a#2"), QueueOrder.batch(queue.get(0), queue, 10, NOW));
+        assertEquals(Arrays.asList("a#1", "a#2", "a#3", "a#4"), QueueOrder.batch(queue.get(0), queue, 10, NOW + 1));
+        assertEquals(Arrays.asList("a#1", "a#2", "a#3"), QueueOrder.batch(queue.get(0), queue, 3, NOW + 1));
+    }
+
+    private Item<String> queue(String project, int number, int priority, long queuedAt) {
+        return queue(project, number, priority, queuedAt, 0);
+    }
+
+    private Item<String> queue(String project, int number, int priority, long queuedAt, long nextEligible) {
+        Item<String> item = new Item<String>(project + "#" + number, project, number, priority, queuedAt,
+                nextEligible);
+        queue.add(item);
+        return item;
+    }
+
+    private String pick() {
+        return QueueOrder.pick(queue, Collections.<String>emptySet(), NOW);
+    }
+}
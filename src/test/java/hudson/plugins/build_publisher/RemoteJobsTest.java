@@ -0,0 +1,32 @@
+package hudson.plugins.build_publisher;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.json.JSONObject;
+
+import org.junit.Test;
+
+public class RemoteJobsTest {
+
+    @Test
+    public void parseListing() {
+        JSONObject root = JSONObject.fromObject("{'jobs':["
+                + "{'name':'free style'},"
+                + "{'name':'matrix','activeConfigurations':[{'name':'jdk=6'},{'name':'jdk=7'}]}]}");
+
+        Map<String, Long> expected = new HashMap<String, Long>();
+        expected.put("job/free%20style", 42L);
+        expected.put("job/matrix", 42L);
+        expected.put("job/matrix/jdk=6", 42L);
+        expected.put("job/matrix/jdk=7", 42L);
+        assertEquals(expected, RemoteJobs.parse(root, 42L));
+    }
+
+    @Test
+    public void parseEmptyInstance() {
+        assertEquals(0, RemoteJobs.parse(JSONObject.fromObject("{}"), 42L).size());
+    }
+}
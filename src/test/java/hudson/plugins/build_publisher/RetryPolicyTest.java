@@ -0,0 +1,78 @@
+package hudson.plugins.build_publisher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import hudson.plugins.build_publisher.RetryPolicy.ErrorClass;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.StatusLine;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void classifyErrors() {
+        assertEquals(ErrorClass.NETWORK, ErrorClass.of(new ConnectException("Connection refused")));
+        // never got a response
+        assertEquals(ErrorClass.NETWORK, ErrorClass.of(
+                new ServerFailureException(new GetMethod("http://localhost/"), new ConnectTimeoutException())));
+        // connected, but no answer in time
+        assertEquals(ErrorClass.SERVER, ErrorClass.of(new ServerFailureException(new GetMethod("http://localhost/"),
+                new SocketTimeoutException("Read timed out"))));
+        // failed before anything was sent
+        assertEquals(ErrorClass.OTHER, ErrorClass.of(new ServerFailureException(new GetMethod("http://localhost/"),
+                new IOException("build/log got shorter while it was being published"))));
+        assertEquals(ErrorClass.OTHER, ErrorClass.of(new IllegalStateException()));
+    }
+
+    @Test
+    public void classifyNestedServerFailure() {
+        // the manifest check failed before the builds were sent
+        ServerFailureException checked = new ServerFailureException(respondedWith(503), "Failed", null);
+        assertEquals(ErrorClass.SERVER, ErrorClass.of(
+                new ServerFailureException(new PostMethod("http://localhost/"), checked)));
+        assertEquals(ErrorClass.CLIENT, ErrorClass.of(new ServerFailureException(new PostMethod("http://localhost/"),
+                new ServerFailureException(respondedWith(403), "Failed", null))));
+    }
+
+    @Test
+    public void delayGrowsUpToTheLimit() {
+        Random random = new Random(0);
+        long previousMax = 0;
+        for (int attempts = 1; attempts < 100; attempts++) {
+            long max = Math.min(ErrorClass.SERVER.maxDelay, ErrorClass.SERVER.initialDelay << Math.min(attempts - 1, 30));
+            long delay = RetryPolicy.delay(ErrorClass.SERVER, attempts, random);
+            assertTrue(delay >= max / 2 && delay <= max);
+            assertTrue(max >= previousMax);
+            previousMax = max;
+        }
+        assertEquals(ErrorClass.SERVER.maxDelay, previousMax);
+    }
+
+    private static GetMethod respondedWith(final int status) {
+        return new GetMethod("http://localhost/") {
+            @Override
+            public StatusLine getStatusLine() {
+                try {
+                    return new StatusLine("HTTP/1.1 " + status + " Failed");
+                } catch (HttpException e) {
+                    throw new AssertionError(e);
+                }
+            }
+
+            @Override
+            public int getStatusCode() {
+                return status;
+            }
+        };
+    }
+}
@@ -0,0 +1,144 @@
+package hudson.plugins.build_publisher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StagedBuildsTest {
+
+    public @Rule TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void replacedBuildKeepsFilesNotSent() throws IOException {
+        File buildsDir = new File(tmp.getRoot(), "builds");
+        FileUtils.writeStringToFile(new File(buildsDir, "5/log"), "old log");
+        FileUtils.writeStringToFile(new File(buildsDir, "5/archive/a.jar"), "artifact");
+
+        StagedBuilds staged = new StagedBuilds(buildsDir);
+        try {
+            staged.extract(new ByteArrayInputStream(archive("5/log", "new log", "5/build.xml", "<build/>")), null);
+            assertEquals(Arrays.asList("5"), Arrays.asList(staged.commit(null).toArray()));
+        } finally {
+            staged.discard();
+        }
+
+        assertEquals("new log", FileUtils.readFileToString(new File(buildsDir, "5/log")));
+        assertEquals("artifact", FileUtils.readFileToString(new File(buildsDir, "5/archive/a.jar")));
+        assertEquals("<build/>", FileUtils.readFileToString(new File(buildsDir, "5/build.xml")));
+    }
+
+    @Test
+    public void truncatedArchiveLeavesNothingBehind() throws IOException {
+        File buildsDir = new File(tmp.getRoot(), "builds");
+        FileUtils.writeStringToFile(new File(buildsDir, "5/log"), "old log");
+
+        byte[] archive = archive("5/log", "new log", "6/build.xml", "<build/>");
+        StagedBuilds staged = new StagedBuilds(buildsDir);
+        try {
+            staged.extract(new ByteArrayInputStream(archive, 0, 700), null);
+            fail();
+        } catch (IOException expected) {
+        } finally {
+            staged.discard();
+        }
+
+        assertEquals("old log", FileUtils.readFileToString(new File(buildsDir, "5/log")));
+        assertFalse(new File(buildsDir, "6").exists());
+    }
+
+    @Test
+    public void archiveCutOnBlockBoundaryIsRejected() throws IOException {
+        File buildsDir = new File(tmp.getRoot(), "builds");
+        // the entries fill the first block exactly, the end-of-archive record is in the next one
+        byte[] archive = archive("6/build.xml", "<build/>", "6/log", StringUtils.repeat("x", 10240 - 3 * 512));
+        StagedBuilds staged = new StagedBuilds(buildsDir);
+        try {
+            staged.extract(new ByteArrayInputStream(archive, 0, 10240), null);
+            fail();
+        } catch (IOException expected) {
+        } finally {
+            staged.discard();
+        }
+        assertFalse(new File(buildsDir, "6").exists());
+    }
+
+    @Test
+    public void failedCommitTakesBuildsBackOut() throws IOException {
+        File buildsDir = new File(tmp.getRoot(), "builds");
+        FileUtils.writeStringToFile(new File(buildsDir, "5/log"), "old log");
+        // promised by the store, but gone by the time the build arrives
+        StagedBuilds.expectFromStore(buildsDir,
+                Collections.singletonList(new BuildManifest.Entry("6/archive/a.jar", 1, "0")));
+
+        StagedBuilds staged = new StagedBuilds(buildsDir);
+        try {
+            staged.extract(new ByteArrayInputStream(archive("5/log", "new log", "6/build.xml", "<build/>")), null);
+            staged.commit(null);
+            fail();
+        } catch (IOException expected) {
+        } finally {
+            staged.discard();
+        }
+
+        assertEquals("old log", FileUtils.readFileToString(new File(buildsDir, "5/log")));
+        assertFalse(new File(buildsDir, "6").exists());
+    }
+
+    @Test
+    public void filesInStoreAppearOnlyWithTheBuild() throws IOException {
+        File buildsDir = new File(tmp.getRoot(), "builds");
+        BlobStore blobs = new BlobStore(tmp.newFolder("blobs"));
+        File stored = new File(tmp.getRoot(), "stored.jar");
+        FileUtils.writeStringToFile(stored, StringUtils.repeat("x", 4096));
+        blobs.store(stored);
+
+        BuildManifest manifest = new BuildManifest();
+        manifest.add("7/archive/a.jar", stored);
+        List<BuildManifest.Entry> inStore = new ArrayList<BuildManifest.Entry>();
+        assertEquals(Collections.emptyList(), manifest.missingIn(buildsDir, blobs, inStore));
+        assertEquals(1, inStore.size());
+        StagedBuilds.expectFromStore(buildsDir, inStore);
+        assertFalse(new File(buildsDir, "7").exists());
+
+        StagedBuilds staged = new StagedBuilds(buildsDir);
+        try {
+            staged.extract(new ByteArrayInputStream(archive("7/build.xml", "<build/>")), blobs);
+            staged.commit(blobs);
+        } finally {
+            staged.discard();
+        }
+        assertEquals(4096, new File(buildsDir, "7/archive/a.jar").length());
+    }
+
+    private static byte[] archive(String... entries) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarOutputStream tar = new TarOutputStream(out);
+        for (int i = 0; i < entries.length; i += 2) {
+            byte[] data = entries[i + 1].getBytes("UTF-8");
+            TarEntry entry = new TarEntry(entries[i]);
+            entry.setSize(data.length);
+            tar.putNextEntry(entry);
+            tar.write(data);
+            tar.closeEntry();
+        }
+        tar.close();
+        return out.toByteArray();
+    }
+}
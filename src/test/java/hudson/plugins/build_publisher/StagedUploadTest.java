@@ -0,0 +1,147 @@
+package hudson.plugins.build_publisher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import hudson.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StagedUploadTest {
+
+    public @Rule TemporaryFolder tmp = new TemporaryFolder();
+
+    private byte[] archive;
+    private StagedUpload upload;
+
+    @Before
+    public void setUp() throws IOException {
+        archive = new byte[100];
+        for (int i = 0; i < archive.length; i++) {
+            archive[i] = (byte) i;
+        }
+        upload = new StagedUpload(tmp.getRoot(), "folder/job", "upload-1");
+    }
+
+    @Test
+    public void partsOutOfOrder() throws IOException {
+        write(60, 100);
+        assertEquals(0, upload.getCommittedLength());
+        write(0, 30);
+        assertEquals(30, upload.getCommittedLength());
+        write(30, 60);
+        assertEquals(100, upload.getCommittedLength());
+        assertStaged();
+    }
+
+    @Test
+    public void overlappingParts() throws IOException {
+        write(0, 50);
+        write(20, 70);
+        write(40, 100);
+        // contained in the others entirely
+        write(10, 30);
+        assertEquals(100, upload.getCommittedLength());
+        assertStaged();
+    }
+
+    @Test
+    public void gapBetweenParts() throws IOException {
+        write(0, 40);
+        write(50, 100);
+        assertEquals(40, upload.getCommittedLength());
+        assertFalse(upload.matches(100, digest(archive)));
+
+        write(40, 50);
+        assertEquals(100, upload.getCommittedLength());
+        assertStaged();
+    }
+
+    @Test
+    public void partOfBrokenRequestIsKept() throws IOException {
+        try {
+            upload.write(0, new BrokenInputStream(Arrays.copyOfRange(archive, 0, 35)));
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(35, upload.getCommittedLength());
+
+        // a shorter retry doesn't replace what is there
+        write(0, 20);
+        assertEquals(35, upload.getCommittedLength());
+
+        write(35, 100);
+        assertStaged();
+    }
+
+    @Test
+    public void differentArchiveDoesNotMatch() throws IOException {
+        write(0, 100);
+        byte[] other = archive.clone();
+        other[50]++;
+        assertFalse(upload.matches(100, digest(other)));
+        assertFalse(upload.matches(101, digest(archive)));
+    }
+
+    @Test
+    public void uploadsOfOtherJobsAreApart() throws IOException {
+        write(0, 100);
+        StagedUpload other = new StagedUpload(tmp.getRoot(), "folder/other", "upload-1");
+        assertEquals(0, other.getCommittedLength());
+        other.delete();
+        assertStaged();
+    }
+
+    private void write(int from, int to) throws IOException {
+        upload.write(from, new ByteArrayInputStream(Arrays.copyOfRange(archive, from, to)));
+    }
+
+    private void assertStaged() throws IOException {
+        assertTrue(upload.matches(archive.length, digest(archive)));
+        InputStream in = upload.open(archive.length);
+        try {
+            assertArrayEquals(archive, IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String digest(byte[] data) {
+        try {
+            return Util.toHexString(MessageDigest.getInstance("MD5").digest(data));
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Connection that breaks off after the data.
+     */
+    private static final class BrokenInputStream extends FilterInputStream {
+        BrokenInputStream(byte[] data) {
+            super(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) {
+                throw new IOException("Connection reset");
+            }
+            return n;
+        }
+    }
+}
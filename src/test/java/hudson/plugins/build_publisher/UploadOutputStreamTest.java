@@ -0,0 +1,36 @@
+package hudson.plugins.build_publisher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class UploadOutputStreamTest {
+
+    @Test
+    public void skipsWhatHasArrivedBefore() throws IOException {
+        byte[] archive = new byte[100];
+        for (int i = 0; i < archive.length; i++) {
+            archive[i] = (byte) i;
+        }
+
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        UploadOutputStream first = new UploadOutputStream(whole, 0);
+        first.write(archive);
+
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        UploadOutputStream resumed = new UploadOutputStream(rest, 42);
+        resumed.write(archive, 0, 30);
+        resumed.write(archive[30]);
+        resumed.write(archive, 31, 69);
+
+        assertArrayEquals(archive, whole.toByteArray());
+        assertArrayEquals(Arrays.copyOfRange(archive, 42, 100), rest.toByteArray());
+        assertEquals(100, resumed.getLength());
+        assertEquals(first.getDigest(), resumed.getDigest());
+    }
+}